@@ -0,0 +1,93 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.configuration.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lookup of the mapping of an ingress URI with the {@link RoutingIndex} to a linear scan of all
+ * mappings, for configurations of different sizes. Most URIs are mapped, some aren't mapped at all, which is the
+ * worst case of the linear scan. Run with {@code gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingIndexBenchmark {
+
+    private static final int URIS = 1024;
+
+    @Param({ "10", "100", "1000", "10000" })
+    int mappingCount;
+
+    private List<ProxyConfiguration.Mapping> mappings;
+    private RoutingIndex routingIndex;
+    private String[] ingressURIs;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        mappings = new ArrayList<>(mappingCount);
+        for (int i = 0; i < mappingCount; i++) {
+            mappings.add(new ProxyConfiguration.Mapping(
+                "http://localhost:8080/service-" + i + "/(.*)",
+                "http://service-" + i + ".internal:8080/$1"
+            ));
+        }
+        routingIndex = new RoutingIndex(mappings);
+        final Random random = new Random(42);
+        ingressURIs = new String[URIS];
+        for (int i = 0; i < URIS; i++) {
+            ingressURIs[i] = i % 8 == 0
+                ? "http://localhost:8080/unmapped/" + i
+                : "http://localhost:8080/service-" + random.nextInt(mappingCount) + "/users/" + i;
+        }
+    }
+
+    private String nextIngressURI() {
+        next = (next + 1) & (URIS - 1);
+        return ingressURIs[next];
+    }
+
+    @Benchmark
+    public Optional<ProxyConfiguration.Mapping.UriMatcher> routingIndex() {
+        return routingIndex.findMatch(nextIngressURI());
+    }
+
+    @Benchmark
+    public Optional<ProxyConfiguration.Mapping.UriMatcher> linearScan() {
+        final String ingressURI = nextIngressURI();
+        for (ProxyConfiguration.Mapping mapping : mappings) {
+            final ProxyConfiguration.Mapping.UriMatcher matcher = mapping.matcher(ingressURI);
+            if (matcher.matches()) {
+                return Optional.of(matcher);
+            }
+        }
+        return Optional.empty();
+    }
+}
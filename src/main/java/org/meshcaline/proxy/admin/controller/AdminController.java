@@ -20,11 +20,17 @@
 package org.meshcaline.proxy.admin.controller;
 
 import org.meshcaline.proxy.admin.model.ConfigurationEntryDTO;
+import org.meshcaline.proxy.configuration.model.ProxyConfiguration;
 import org.meshcaline.proxy.configuration.service.ConfigurationService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.NoSuchElementException;
+
 @RestController
 @RequestMapping("/admin")
 public class AdminController {
@@ -35,19 +41,48 @@ public class AdminController {
         this.configurationService = configurationService;
     }
 
-    @GetMapping("/mappings")
+    /**
+     * Lists the mappings in order, as JSON array or, with {@code Accept: application/x-ndjson}, as one JSON object
+     * per line, which can be imported again with {@link #replaceMappings}.
+     */
+    @GetMapping(value = "/mappings", produces = { MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE })
     public Flux<ConfigurationEntryDTO.Out> listMappings() {
         return configurationService.listMappings().map(ConfigurationEntryDTO.Out::out);
     }
 
+    /**
+     * Replaces all mappings by the mappings of the request body, one JSON object per line. All mappings are
+     * validated before any of them is applied, and they are applied at once. Mappings without an id get a new one.
+     */
+    @PutMapping(value = "/mappings", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public Mono<Void> replaceMappings(@RequestBody Flux<ConfigurationEntryDTO.Out> entries) {
+        return entries
+            .index( (index, entry) -> mapping(index + 1, entry) )
+            .collectList()
+            .flatMap(configurationService::replaceMappings)
+            .onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
+    }
+
+    private static ProxyConfiguration.Mapping mapping(long line, ConfigurationEntryDTO.Out entry) {
+        if (entry.getIngressURIRegEx() == null || entry.getEgressURIReplace() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Line "+line+": missing ingressURIRegEx or egressURIReplace");
+        }
+        try {
+            return entry.getId() == null ? entry.in() : entry.in(entry.getId());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Line "+line+": "+e.getMessage(), e);
+        }
+    }
+
     @PostMapping("/mappings")
     public Mono<ConfigurationEntryDTO.Out> addMapping(
             @RequestBody ConfigurationEntryDTO.In entry,
             @RequestParam(required = false) String before,
             @RequestParam(required = false) String after
     ) {
-        //TODO: Handling for before and after
-        return configurationService.addMapping(entry.in()).map(ConfigurationEntryDTO.Out::out);
+        return positioned(configurationService.addMapping(entry.in(), before, after))
+            .map(ConfigurationEntryDTO.Out::out);
     }
 
     @DeleteMapping("/mappings/{id}")
@@ -66,7 +101,16 @@ public class AdminController {
             @RequestParam(required = false) String before,
             @RequestParam(required = false) String after
     ) {
-        //TODO
-        return Mono.empty();
+        return positioned(configurationService.moveMapping(id, before, after));
+    }
+
+    /**
+     * @return the result of a change that positions a mapping, with unknown ids reported as not found, and
+     * conflicting positions as bad request
+     */
+    private static <T> Mono<T> positioned(Mono<T> change) {
+        return change
+            .onErrorMap(NoSuchElementException.class, e -> new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage(), e))
+            .onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
     }
 }
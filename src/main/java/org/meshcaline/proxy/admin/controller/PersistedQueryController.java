@@ -0,0 +1,65 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.admin.controller;
+
+import graphql.parser.InvalidSyntaxException;
+import org.meshcaline.proxy.admin.model.PersistedQueryDTO;
+import org.meshcaline.proxy.service.PersistedQueries;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Registers allowlisted filter queries, see {@link PersistedQueries}.
+ */
+@RestController
+@RequestMapping("/admin")
+public class PersistedQueryController {
+
+    private final PersistedQueries persistedQueries;
+
+    public PersistedQueryController(PersistedQueries persistedQueries) {
+        this.persistedQueries = persistedQueries;
+    }
+
+    @GetMapping("/queries")
+    public Flux<PersistedQueryDTO.Out> listQueries() {
+        return Flux.fromIterable(persistedQueries.registered()).map(PersistedQueryDTO.Out::out);
+    }
+
+    @PostMapping("/queries")
+    public Mono<PersistedQueryDTO.Out> registerQuery(@RequestBody PersistedQueryDTO.In entry) {
+        if (entry.getQuery() == null || entry.getQuery().isBlank()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Missing query"));
+        }
+        return Mono.fromCallable( () -> persistedQueries.register(entry.getQuery()) )
+            .onErrorMap(InvalidSyntaxException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e))
+            .map(PersistedQueryDTO.Out::out);
+    }
+
+    @DeleteMapping("/queries/{hash}")
+    public Mono<Void> deleteQuery(@PathVariable String hash) {
+        return persistedQueries.remove(hash)
+            ? Mono.empty()
+            : Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "No registered query " + hash));
+    }
+}
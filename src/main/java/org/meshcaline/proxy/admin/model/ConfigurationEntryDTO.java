@@ -26,6 +26,7 @@ public interface ConfigurationEntryDTO {
     class In {
         private String ingressURIRegEx;
         private String egressURIReplace;
+        private ProxyConfiguration.Mapping.Options options;
 
         public String getIngressURIRegEx() {
             return ingressURIRegEx;
@@ -43,17 +44,26 @@ public interface ConfigurationEntryDTO {
             this.egressURIReplace = egressURIReplace;
         }
 
+        public ProxyConfiguration.Mapping.Options getOptions() {
+            return options;
+        }
+
+        public void setOptions(ProxyConfiguration.Mapping.Options options) {
+            this.options = options;
+        }
+
         private void from(ProxyConfiguration.Mapping entry){
             this.setIngressURIRegEx(entry.ingressURIRegEx());
             this.setEgressURIReplace(entry.getEgressURIReplace());
+            this.setOptions(entry.options());
         }
 
         public ProxyConfiguration.Mapping in() {
-            return new ProxyConfiguration.Mapping(this.getIngressURIRegEx(),this.getEgressURIReplace());
+            return new ProxyConfiguration.Mapping(this.getIngressURIRegEx(),this.getEgressURIReplace(),this.getOptions());
         }
 
         public ProxyConfiguration.Mapping in(String id) {
-            return new ProxyConfiguration.Mapping(id, this.getIngressURIRegEx(),this.getEgressURIReplace());
+            return new ProxyConfiguration.Mapping(id, this.getIngressURIRegEx(),this.getEgressURIReplace(),this.getOptions());
         }
 
     }
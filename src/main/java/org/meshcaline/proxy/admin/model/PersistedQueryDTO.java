@@ -0,0 +1,65 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.admin.model;
+
+import org.meshcaline.proxy.service.PersistedQueries;
+
+public interface PersistedQueryDTO {
+
+    class In {
+        private String query;
+
+        public String getQuery() {
+            return query;
+        }
+
+        public void setQuery(String query) {
+            this.query = query;
+        }
+
+        private void from(PersistedQueries.PersistedQuery entry){
+            this.setQuery(entry.query());
+        }
+    }
+
+    class Out extends In {
+        private String hash;
+
+        public String getHash() {
+            return hash;
+        }
+
+        public void setHash(String hash) {
+            this.hash = hash;
+        }
+
+        public static Out out(PersistedQueries.PersistedQuery entry){
+            final Out result = new Out();
+            result.from(entry);
+            return result;
+        }
+
+        private void from(PersistedQueries.PersistedQuery entry){
+            super.from(entry);
+            setHash(entry.hash());
+        }
+    }
+
+}
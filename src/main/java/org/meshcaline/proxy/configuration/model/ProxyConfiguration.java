@@ -21,92 +21,214 @@ package org.meshcaline.proxy.configuration.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import org.springframework.data.annotation.Transient;
+import org.springframework.lang.Nullable;
 
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Immutable snapshot of the mappings of the proxy, together with their routing index. A change of the mappings
+ * creates a new snapshot, so that lookups always see a consistent state, and the routing index is built by the
+ * change rather than on the request path.
+ */
 public class ProxyConfiguration {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
     private final List<Mapping> mappings;
+    // the positions of the mappings by their id
+    @Transient
+    private final Map<String, Integer> positions;
+    private final long version;
+    @Transient
+    private final RoutingIndex routingIndex;
 
     public ProxyConfiguration( List<Mapping> mappings ){
-        this.mappings = new CopyOnWriteArrayList<>(mappings);
+        this.mappings = List.copyOf(mappings);
+        this.positions = new HashMap<>();
+        for (int i = 0; i < this.mappings.size(); i++) {
+            if (this.positions.put(this.mappings.get(i).id(), i) != null) {
+                throw new IllegalArgumentException("Non-unique identifier in mappings: "+this.mappings.get(i).id());
+            }
+        }
+        this.version = VERSIONS.incrementAndGet();
+        this.routingIndex = new RoutingIndex(this.mappings);
     }
 
     public ProxyConfiguration() {
-        this(new ArrayList<>());
+        this(List.of());
     }
 
     public List<Mapping> mappings() {
         return mappings;
     }
 
+    /**
+     * @return the version of the mappings; it is unique across all snapshots, so it identifies the state of the
+     * mappings the routes are resolved with
+     */
+    public long version() {
+        return version;
+    }
+
     public Optional<Mapping> findMapping(String id) {
-        return this.mappings.stream()
-            .filter(m -> m.id().equals(id))
-            .findFirst();
+        return Optional.ofNullable(this.positions.get(id)).map(this.mappings::get);
     }
 
-    public boolean addMapping(Mapping mapping){
-        return this.mappings.add(mapping);
+    /**
+     * @return a snapshot with the mapping appended
+     */
+    public ProxyConfiguration withMapping(Mapping mapping){
+        return withMapping(mapping, null, null);
     }
 
-    public boolean removeMapping(String id){
-        return this.mappings.removeIf( m -> m.id().equals(id) );
+    /**
+     * @param before the id of the mapping the new mapping is inserted before, if any
+     * @param after the id of the mapping the new mapping is inserted after, if any; the mapping is appended if
+     *              neither is given
+     * @return a snapshot with the mapping inserted
+     */
+    public ProxyConfiguration withMapping(Mapping mapping, @Nullable String before, @Nullable String after){
+        final List<Mapping> changed = new ArrayList<>(this.mappings);
+        changed.add(position(before, after), mapping);
+        return new ProxyConfiguration(changed);
     }
 
-    public Optional<Mapping> updateMapping(Mapping mapping){
-        final ListIterator<Mapping> it = this.mappings.listIterator();
-        while( it.hasNext() ){
-            final Mapping oldMapping = it.next();
-            if( oldMapping.id().equals(mapping.id()) ){
-                it.set(mapping);
-                return Optional.of(mapping);
-            }
+    /**
+     * @param before the id of the mapping the mapping is moved before, if any
+     * @param after the id of the mapping the mapping is moved after, if any; the mapping is moved to the end if
+     *              neither is given
+     * @return a snapshot with the mapping moved, empty if there is no mapping with the id
+     */
+    public Optional<ProxyConfiguration> withMovedMapping(String id, @Nullable String before, @Nullable String after){
+        final Integer from = this.positions.get(id);
+        if (from == null) return Optional.empty();
+        final int to = position(before, after);
+        final List<Mapping> changed = new ArrayList<>(this.mappings);
+        final Mapping mapping = changed.remove((int) from);
+        // the positions behind the mapping have moved up by its removal
+        changed.add(to > from ? to - 1 : to, mapping);
+        return Optional.of(new ProxyConfiguration(changed));
+    }
+
+    /**
+     * @return a snapshot without the mapping, empty if there is no mapping with the id
+     */
+    public Optional<ProxyConfiguration> withoutMapping(String id){
+        final Integer position = this.positions.get(id);
+        if (position == null) return Optional.empty();
+        final List<Mapping> changed = new ArrayList<>(this.mappings);
+        changed.remove((int) position);
+        return Optional.of(new ProxyConfiguration(changed));
+    }
+
+    /**
+     * @return a snapshot with the mapping of the same id replaced, empty if there is no mapping with the id
+     */
+    public Optional<ProxyConfiguration> withUpdatedMapping(Mapping mapping){
+        final Integer position = this.positions.get(mapping.id());
+        if (position == null) return Optional.empty();
+        final List<Mapping> changed = new ArrayList<>(this.mappings);
+        changed.set(position, mapping);
+        return Optional.of(new ProxyConfiguration(changed));
+    }
+
+    private int position(@Nullable String before, @Nullable String after) {
+        if (before != null && after != null) {
+            throw new IllegalArgumentException("Only one of before and after may be given");
         }
-        return Optional.empty();
+        if (before != null) return positionOf(before);
+        if (after != null) return positionOf(after) + 1;
+        return this.mappings.size();
     }
 
-    public Optional<String> findEgressURI(String ingressURI) {
-        // we want to process the entries strictly in order, hence don't use streams
-        for( Mapping mapping: this.mappings ){
-            final Mapping.UriMatcher matcher =  mapping.matcher(ingressURI);
-            if (matcher.matches()) {
-                return Optional.of(matcher.egressUri());
-            }
+    private int positionOf(String id) {
+        final Integer position = this.positions.get(id);
+        if (position == null) {
+            throw new NoSuchElementException("Could not find mapping with id: "+id);
         }
-        return Optional.empty();
+        return position;
+    }
+
+    public Optional<String> findEgressURI(String ingressURI) {
+        return findMatch(ingressURI).map(Mapping.UriMatcher::egressUri);
+    }
+
+    /**
+     * @return the matcher of the first mapping that matches the ingress URI
+     */
+    public Optional<Mapping.UriMatcher> findMatch(String ingressURI) {
+        return routingIndex.findMatch(ingressURI);
     }
 
     public static class Mapping {
         final String id;
         final String ingressURIRegEx;
         final String egressURIReplace;
+        final Options options;
         @Transient
         final Pattern ingressURIPattern;
 
+        /**
+         * Settings that control how requests of a mapping are proxied.
+         * @param cache whether responses of the proxied service may be served from the response cache
+         * @param maxConcurrentFollowUps maximum number of follow-up requests to the proxied service in progress at
+         *                               the same time, across all ingress requests; {@code null} for no limit
+         * @param followUpDeadline how long the follow-up requests of an ingress request may take, before the
+         *                         outstanding ones are skipped; {@code null} for no deadline
+         * @param hedgeFollowUps whether a GET follow-up request to the proxied service is sent a second time, if
+         *                       its response is slower than most
+         */
+        public record Options (
+            boolean cache,
+            @Nullable Integer maxConcurrentFollowUps,
+            @Nullable Duration followUpDeadline,
+            boolean hedgeFollowUps
+        ){
+            public static final Options DEFAULT = new Options(false, null, null, false);
+        }
+
         @JsonCreator
         public Mapping(
             String id,
             String ingressURIRegEx,
-            String egressURIReplace
+            String egressURIReplace,
+            Options options
         ) {
             this.id = id;
             this.ingressURIRegEx = ingressURIRegEx;
             this.egressURIReplace = egressURIReplace;
+            this.options = options == null ? Options.DEFAULT : options;
             this.ingressURIPattern = Pattern.compile(ingressURIRegEx);
         }
 
+        public Mapping(
+            String id,
+            String ingressURIRegEx,
+            String egressURIReplace
+        ) {
+            this(id, ingressURIRegEx, egressURIReplace, Options.DEFAULT);
+        }
+
+        public Mapping(
+            String ingressURIRegEx,
+            String egressURIReplace,
+            Options options
+        ) {
+            this(UUID.randomUUID().toString(), ingressURIRegEx, egressURIReplace, options);
+        }
+
         public Mapping(
             String ingressURIRegEx,
             String egressURIReplace
         ) {
-            this(UUID.randomUUID().toString(), ingressURIRegEx, egressURIReplace);
+            this(ingressURIRegEx, egressURIReplace, Options.DEFAULT);
         }
 
         public Mapping withId(String id){
-            return new Mapping(id,this.ingressURIRegEx,this.egressURIReplace);
+            return new Mapping(id,this.ingressURIRegEx,this.egressURIReplace,this.options);
         }
 
         public String id() {
@@ -121,9 +243,14 @@ public class ProxyConfiguration {
             return this.egressURIReplace;
         }
 
+        public Options options() {
+            return this.options;
+        }
+
         public interface UriMatcher {
             boolean matches();
             String egressUri();
+            Mapping mapping();
         }
 
         public UriMatcher matcher(final String ingressUri) {
@@ -131,6 +258,7 @@ public class ProxyConfiguration {
                 final Matcher matcher = ingressURIPattern.matcher(ingressUri);
                 public boolean matches() { return matcher.matches(); }
                 public String egressUri() { return matcher.replaceAll(egressURIReplace); }
+                public Mapping mapping() { return Mapping.this; }
             };
         }
 
@@ -0,0 +1,150 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.configuration.model;
+
+import org.springframework.lang.Nullable;
+
+import java.util.*;
+
+/**
+ * Index of the mappings of a {@link ProxyConfiguration} by the literal prefix of their ingress RegEx, so that only
+ * the mappings whose prefix is a prefix of an ingress URI have to be matched against it.
+ * <p>
+ * The prefixes are stored in a trie of their characters, where an unescaped {@code .} of the RegEx is an edge that
+ * matches any character (as in {@code http://api.example.com/}). The candidates of an ingress URI are the mappings
+ * of all nodes reached by its characters; mappings without a usable prefix are stored at the root, and are thus
+ * candidates for all URIs. The candidates are tried in the order of the mappings, so the first matching mapping
+ * wins, just as with a linear scan.
+ */
+final class RoutingIndex {
+
+    /** stands for an unescaped {@code .} in a prefix */
+    private static final char ANY = '\uFFFF';
+
+    private static final class Node {
+        final Map<Character, Node> children = new HashMap<>();
+        @Nullable Node any;
+        final List<Integer> mappings = new ArrayList<>();
+
+        Node child(char c) {
+            if (c == ANY) {
+                if (any == null) any = new Node();
+                return any;
+            }
+            return children.computeIfAbsent(c, k -> new Node());
+        }
+    }
+
+    private final List<ProxyConfiguration.Mapping> mappings;
+    private final Node root = new Node();
+
+    RoutingIndex(List<ProxyConfiguration.Mapping> mappings) {
+        this.mappings = List.copyOf(mappings);
+        for (int i = 0; i < this.mappings.size(); i++) {
+            Node node = root;
+            for (char c : prefix(this.mappings.get(i).ingressURIRegEx()).toCharArray()) {
+                node = node.child(c);
+            }
+            node.mappings.add(i);
+        }
+    }
+
+    /**
+     * @return the matcher of the first mapping that matches the ingress URI
+     */
+    Optional<ProxyConfiguration.Mapping.UriMatcher> findMatch(String ingressURI) {
+        final List<Integer> candidates = new ArrayList<>(root.mappings);
+        List<Node> nodes = List.of(root);
+        for (int i = 0; i < ingressURI.length() && !nodes.isEmpty(); i++) {
+            final List<Node> next = new ArrayList<>(2);
+            for (Node node : nodes) {
+                final Node child = node.children.get(ingressURI.charAt(i));
+                if (child != null) next.add(child);
+                if (node.any != null) next.add(node.any);
+            }
+            next.forEach( node -> candidates.addAll(node.mappings) );
+            nodes = next;
+        }
+        // the mappings of each node are in order, but not across nodes
+        Collections.sort(candidates);
+        for (int index : candidates) {
+            final ProxyConfiguration.Mapping.UriMatcher matcher = mappings.get(index).matcher(ingressURI);
+            if (matcher.matches()) {
+                return Optional.of(matcher);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the text every string matching the RegEx starts with, with {@link #ANY} for an unescaped {@code .};
+     * empty if it can't be determined
+     */
+    static String prefix(String regEx) {
+        if (hasTopLevelAlternation(regEx)) return "";
+        final StringBuilder prefix = new StringBuilder();
+        int i = regEx.startsWith("^") ? 1 : 0;
+        while (i < regEx.length()) {
+            final char c = regEx.charAt(i);
+            final int length;
+            final char literal;
+            if (c == '\\' && i + 1 < regEx.length() && !Character.isLetterOrDigit(regEx.charAt(i + 1))) {
+                // an escaped meta character
+                length = 2;
+                literal = regEx.charAt(i + 1);
+            } else if (c == '.') {
+                length = 1;
+                literal = ANY;
+            } else if ("[]()*+?{}|^$\\".indexOf(c) >= 0) {
+                break;
+            } else {
+                length = 1;
+                literal = c;
+            }
+            // a quantifier makes the character optional
+            if (i + length < regEx.length() && "?*{".indexOf(regEx.charAt(i + length)) >= 0) break;
+            prefix.append(literal);
+            i += length;
+        }
+        return prefix.toString();
+    }
+
+    private static boolean hasTopLevelAlternation(String regEx) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regEx.length(); i++) {
+            final char c = regEx.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.configuration.repository;
+
+import org.meshcaline.proxy.configuration.model.ProxyConfiguration;
+import org.springframework.lang.Nullable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded history of the saved configurations, oldest first. Only the latest {@code maxVersions} versions are
+ * retained. The oldest retained version (the base) and the latest version are stored in full; with {@code deltas}
+ * the versions in between are stored as runs of mappings copied from the base and runs of mappings of their own,
+ * rather than as full configurations with their routing indexes. They are materialized when they are read.
+ * <p>
+ * New versions are stored in full, and compacted in the background: versions beyond the window are dropped, and
+ * the versions in between are encoded against the base, which is re-encoded when the base is dropped.
+ */
+final class ConfigurationHistory {
+
+    /**
+     * A run of {@code length} mappings copied from position {@code from} of the base, or the mappings
+     * {@code inserted} at this point.
+     */
+    private record Segment (
+        int from,
+        int length,
+        @Nullable List<ProxyConfiguration.Mapping> inserted
+    ){
+    }
+
+    /**
+     * A version stored either as full {@code configuration} or as {@code delta} against the base.
+     */
+    private record Version (
+        String id,
+        Instant createdAt,
+        Instant lastModifiedAt,
+        @Nullable ProxyConfiguration configuration,
+        @Nullable List<Segment> delta
+    ){
+        List<ProxyConfiguration.Mapping> mappings(List<ProxyConfiguration.Mapping> base) {
+            return configuration != null ? configuration.mappings() : apply(base, delta);
+        }
+
+        Version full(List<ProxyConfiguration.Mapping> base) {
+            return configuration != null
+                ? this
+                : new Version(id, createdAt, lastModifiedAt, new ProxyConfiguration(apply(base, delta)), null);
+        }
+
+        Version encoded(List<ProxyConfiguration.Mapping> oldBase, List<ProxyConfiguration.Mapping> newBase) {
+            return new Version(id, createdAt, lastModifiedAt, null, encode(newBase, mappings(oldBase)));
+        }
+
+        ProxyConfigurationEntity entity(List<ProxyConfiguration.Mapping> base) {
+            return new ProxyConfigurationEntity(id, full(base).configuration(), createdAt, lastModifiedAt);
+        }
+    }
+
+    private final int maxVersions;
+    private final boolean deltas;
+    private final LinkedHashMap<String, Version> versions = new LinkedHashMap<>();
+    private final Scheduler scheduler = Schedulers.newSingle("config-history", true);
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    /**
+     * @param maxVersions number of versions that are retained; at least the latest version is
+     * @param deltas whether the versions between the oldest and the latest are stored as deltas
+     */
+    ConfigurationHistory(int maxVersions, boolean deltas) {
+        this.maxVersions = Math.max(1, maxVersions);
+        this.deltas = deltas;
+    }
+
+    /**
+     * Saves the entity as latest version, or replaces the version with the same id.
+     * @return the entity as saved, with its creation and modification time
+     */
+    synchronized ProxyConfigurationEntity put(ProxyConfigurationEntity entity) {
+        final Instant now = Instant.now();
+        final Version existing = versions.get(entity.id());
+        final Instant createdAt = entity.createdAt() != null ? entity.createdAt()
+            : existing != null ? existing.createdAt()
+            : now;
+        final Version version = new Version(entity.id(), createdAt, now, entity.configuration(), null);
+        final List<ProxyConfiguration.Mapping> base = baseMappings();
+        versions.put(entity.id(), version);
+        if (existing != null) {
+            // the replaced version might be the base of the deltas
+            rebase(new ArrayList<>(versions.values()), base);
+        }
+        scheduleCompaction();
+        return version.entity(base);
+    }
+
+    synchronized Optional<ProxyConfigurationEntity> latest() {
+        return versions.values().stream()
+            .reduce( (previous, next) -> next )
+            .map( version -> version.entity(List.of()) );
+    }
+
+    synchronized Optional<ProxyConfigurationEntity> find(String id) {
+        return Optional.ofNullable(versions.get(id))
+            .map( version -> version.entity(baseMappings()) );
+    }
+
+    synchronized boolean contains(String id) {
+        return versions.containsKey(id);
+    }
+
+    /**
+     * @return the ids of the versions, oldest first
+     */
+    synchronized List<String> ids() {
+        return new ArrayList<>(versions.keySet());
+    }
+
+    synchronized int size() {
+        return versions.size();
+    }
+
+    synchronized void remove(String id) {
+        final List<ProxyConfiguration.Mapping> base = baseMappings();
+        if (versions.remove(id) != null) {
+            rebase(new ArrayList<>(versions.values()), base);
+        }
+    }
+
+    synchronized void clear() {
+        versions.clear();
+    }
+
+    void dispose() {
+        scheduler.dispose();
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::compact);
+        }
+    }
+
+    /**
+     * Drops the versions beyond the window, and encodes the versions between the base and the latest version.
+     */
+    private synchronized void compact() {
+        compactionScheduled.set(false);
+        final List<Version> retained = new ArrayList<>(versions.values());
+        rebase(retained.subList(Math.max(0, retained.size() - maxVersions), retained.size()), baseMappings());
+    }
+
+    /**
+     * Replaces the versions by the retained ones, with the first and the last stored in full, and the ones in
+     * between encoded against the first.
+     * @param oldBase the mappings of the base the deltas of the retained versions refer to
+     */
+    private void rebase(List<Version> retained, List<ProxyConfiguration.Mapping> oldBase) {
+        final List<Version> rebased = new ArrayList<>(retained.size());
+        for (int i = 0; i < retained.size(); i++) {
+            final Version version = retained.get(i);
+            if (i == 0 || i == retained.size() - 1 || !deltas) {
+                rebased.add(version.full(oldBase));
+            } else if (version.delta() != null && rebased.get(0).mappings(List.of()) == oldBase) {
+                // still encoded against the same base
+                rebased.add(version);
+            } else {
+                rebased.add(version.encoded(oldBase, rebased.get(0).mappings(List.of())));
+            }
+        }
+        versions.clear();
+        rebased.forEach( version -> versions.put(version.id(), version) );
+    }
+
+    /**
+     * @return the mappings of the oldest version, the deltas refer to
+     */
+    private List<ProxyConfiguration.Mapping> baseMappings() {
+        final Version first = versions.isEmpty() ? null : versions.values().iterator().next();
+        return first == null || first.configuration() == null
+            ? List.of()
+            : first.configuration().mappings();
+    }
+
+    private static List<Segment> encode(List<ProxyConfiguration.Mapping> base, List<ProxyConfiguration.Mapping> mappings) {
+        // mappings that haven't changed are shared between the versions
+        final Map<ProxyConfiguration.Mapping, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < base.size(); i++) {
+            positions.put(base.get(i), i);
+        }
+        final List<Segment> segments = new ArrayList<>();
+        int i = 0;
+        while (i < mappings.size()) {
+            final Integer from = positions.get(mappings.get(i));
+            int length = 1;
+            if (from != null) {
+                while (i + length < mappings.size() && from + length < base.size()
+                    && base.get(from + length) == mappings.get(i + length)) {
+                    length++;
+                }
+                segments.add(new Segment(from, length, null));
+            } else {
+                while (i + length < mappings.size() && !positions.containsKey(mappings.get(i + length))) {
+                    length++;
+                }
+                segments.add(new Segment(-1, length, List.copyOf(mappings.subList(i, i + length))));
+            }
+            i += length;
+        }
+        return segments;
+    }
+
+    private static List<ProxyConfiguration.Mapping> apply(List<ProxyConfiguration.Mapping> base, List<Segment> delta) {
+        final List<ProxyConfiguration.Mapping> mappings = new ArrayList<>();
+        for (Segment segment : delta) {
+            mappings.addAll(segment.inserted() != null
+                ? segment.inserted()
+                : base.subList(segment.from(), segment.from() + segment.length()));
+        }
+        return mappings;
+    }
+}
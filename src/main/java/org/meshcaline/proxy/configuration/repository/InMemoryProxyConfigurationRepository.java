@@ -20,30 +20,36 @@
 package org.meshcaline.proxy.configuration.repository;
 
 import org.meshcaline.proxy.configuration.model.ProxyConfiguration;
-import io.vavr.NotImplementedError;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.reactivestreams.Publisher;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
+/**
+ * Keeps the saved configurations in memory, as bounded {@link ConfigurationHistory}: the latest
+ * {@code proxy.config.history.max-versions} versions are retained, and with {@code proxy.config.history.deltas}
+ * the versions between the oldest and the latest one are stored as deltas.
+ */
 @Repository
 public class InMemoryProxyConfigurationRepository implements ProxyConfigurationRepository {
 
-    final private LinkedHashMap<String, ProxyConfigurationEntity> configMap = new LinkedHashMap<>();
+    final private ConfigurationHistory history;
 
     @Component
     @ConfigurationProperties("proxy.config")
     private static class DefaultConfiguration {
         private Map<String,String> mappings;
+        // options of the mappings, keyed by their ingress RegEx
+        private Map<String,ProxyConfiguration.Mapping.Options> options = Map.of();
 
         public Map<String, String> mappings() {
             return mappings;
@@ -52,20 +58,44 @@ public class InMemoryProxyConfigurationRepository implements ProxyConfigurationR
         public void setMappings(Map<String, String> mappings) {
             this.mappings = mappings;
         }
+
+        public Map<String, ProxyConfiguration.Mapping.Options> options() {
+            return options;
+        }
+
+        public void setOptions(Map<String, ProxyConfiguration.Mapping.Options> options) {
+            this.options = options;
+        }
     }
 
     @Autowired
     private DefaultConfiguration defaultConfiguration;
 
+    public InMemoryProxyConfigurationRepository(
+        @Value("${proxy.config.history.max-versions:20}") int maxVersions,
+        @Value("${proxy.config.history.deltas:true}") boolean deltas
+    ) {
+        this.history = new ConfigurationHistory(maxVersions, deltas);
+    }
+
     @PostConstruct
     private void init(){
         if (defaultConfiguration.mappings == null) return;
         final List<ProxyConfiguration.Mapping> mappings = defaultConfiguration.mappings
             .entrySet().stream()
-            .map( entry -> new ProxyConfiguration.Mapping(entry.getKey(),entry.getValue()))
+            .map( entry -> new ProxyConfiguration.Mapping(
+                entry.getKey(),
+                entry.getValue(),
+                defaultConfiguration.options.get(entry.getKey())
+            ))
             .toList();
         final ProxyConfigurationEntity configEntity = new ProxyConfigurationEntity(new ProxyConfiguration(mappings));
-        configMap.put(configEntity.id(),configEntity);
+        history.put(configEntity);
+    }
+
+    @PreDestroy
+    private void dispose() {
+        history.dispose();
     }
 
     @SuppressWarnings("unchecked")
@@ -75,104 +105,100 @@ public class InMemoryProxyConfigurationRepository implements ProxyConfigurationR
 
     @Override
     public <S extends ProxyConfigurationEntity> Mono<S> findFirstByOrderByCreatedAtDesc() {
-        return Mono.justOrEmpty(
-            Optional.ofNullable(configMap.lastEntry())
-                .map( e -> asS(e.getValue()))
-        );
+        return Mono.fromSupplier( () -> history.latest().map(this::<S>asS).orElse(null) );
     }
 
     @Override
     public <S extends ProxyConfigurationEntity> Mono<S> save(S entity) {
-        configMap.put(entity.id(),entity);
-        return Mono.just( asS(entity) );
+        return Mono.just( asS(history.put(entity)) );
     }
 
     @Override
     public <S extends ProxyConfigurationEntity> Flux<S> saveAll(Iterable<S> entities) {
-        for( ProxyConfigurationEntity entity : entities ){
-            configMap.put(entity.id(),entity);
-        }
-        return Flux.fromIterable(entities);
+        return Flux.fromIterable(entities).concatMap(this::save);
     }
 
     @Override
     public <S extends ProxyConfigurationEntity> Flux<S> saveAll(Publisher<S> entityStream) {
-        throw new NotImplementedError();
+        return Flux.from(entityStream).concatMap(this::save);
     }
 
     @Override
     public Mono<ProxyConfigurationEntity> findById(String s) {
-        throw new NotImplementedError();
+        return Mono.fromSupplier( () -> history.find(s).orElse(null) );
     }
 
     @Override
     public Mono<ProxyConfigurationEntity> findById(Publisher<String> id) {
-        return null;
+        return Mono.from(id).flatMap(this::findById);
     }
 
     @Override
     public Mono<Boolean> existsById(String s) {
-        throw new NotImplementedError();
+        return Mono.fromSupplier( () -> history.contains(s) );
     }
 
     @Override
     public Mono<Boolean> existsById(Publisher<String> id) {
-        throw new NotImplementedError();
+        return Mono.from(id).flatMap(this::existsById);
     }
 
+    /**
+     * @return the retained versions, oldest first; versions stored as deltas are materialized one at a time
+     */
     @Override
     public Flux<ProxyConfigurationEntity> findAll() {
-        throw new NotImplementedError();
+        return Flux.defer( () -> findAllById(history.ids()) );
     }
 
     @Override
     public Flux<ProxyConfigurationEntity> findAllById(Iterable<String> strings) {
-        throw new NotImplementedError();
+        return Flux.fromIterable(strings).concatMap(this::findById);
     }
 
     @Override
     public Flux<ProxyConfigurationEntity> findAllById(Publisher<String> idStream) {
-        throw new NotImplementedError();
+        return Flux.from(idStream).concatMap(this::findById);
     }
 
     @Override
     public Mono<Long> count() {
-        throw new NotImplementedError();
+        return Mono.fromSupplier( () -> (long) history.size() );
     }
 
     @Override
     public Mono<Void> deleteById(String s) {
-        throw new NotImplementedError();
+        return Mono.fromRunnable( () -> history.remove(s) );
     }
 
     @Override
     public Mono<Void> deleteById(Publisher<String> id) {
-        throw new NotImplementedError();
+        return Mono.from(id).flatMap(this::deleteById);
     }
 
     @Override
     public Mono<Void> delete(ProxyConfigurationEntity entity) {
-        throw new NotImplementedError();
+        return deleteById(entity.id());
     }
 
     @Override
     public Mono<Void> deleteAllById(Iterable<? extends String> strings) {
-        throw new NotImplementedError();
+        return Flux.fromIterable(strings).concatMap(this::deleteById).then();
     }
 
     @Override
     public Mono<Void> deleteAll(Iterable<? extends ProxyConfigurationEntity> entities) {
-        throw new NotImplementedError();
+        return Flux.fromIterable(entities).concatMap(this::delete).then();
     }
 
     @Override
     public Mono<Void> deleteAll(Publisher<? extends ProxyConfigurationEntity> entityStream) {
-        throw new NotImplementedError();
+        return Flux.from(entityStream).concatMap(this::delete).then();
     }
 
     @Override
     public Mono<Void> deleteAll() {
-        throw new NotImplementedError();
+        return Mono.fromRunnable(history::clear);
     }
 
 }
@@ -19,25 +19,39 @@
 
 package org.meshcaline.proxy.configuration.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.meshcaline.proxy.configuration.model.ProxyConfiguration;
 import org.meshcaline.proxy.configuration.repository.ProxyConfigurationEntity;
 import org.meshcaline.proxy.configuration.repository.ProxyConfigurationRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import jakarta.annotation.PostConstruct;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 @Service
 public class ConfigurationService {
 
     private final ProxyConfigurationRepository proxyConfigurationRepository;
-    private ProxyConfiguration proxyConfiguration = new ProxyConfiguration();
+    // the current snapshot of the configuration; replaced as a whole by each change
+    private final AtomicReference<ProxyConfiguration> proxyConfiguration = new AtomicReference<>(new ProxyConfiguration());
+    private final Cache<RouteKey, Optional<Route>> routes;
+    // the snapshots to save, in the order they have been published; saved one at a time
+    private final Sinks.Many<PendingSave> pendingSaves = Sinks.many().unicast().onBackpressureBuffer();
+    // completes once the saved configuration has been loaded; changes wait for it, so the load can't overwrite them
+    private final Sinks.Empty<Void> loaded = Sinks.empty();
 /*
     private final ReactiveRedisMessageListenerContainer messageListenerContainer;
 
@@ -47,21 +61,65 @@ public class ConfigurationService {
         this.messageListenerContainer = messageListenerContainer;
     }
 */
-    public ConfigurationService(ProxyConfigurationRepository proxyConfigurationRepository) {
+    public ConfigurationService(
+        ProxyConfigurationRepository proxyConfigurationRepository,
+        @Value("${proxy.routes.cache.maximum-size:10000}") long maximumSize,
+        MeterRegistry meterRegistry
+    ) {
         this.proxyConfigurationRepository = proxyConfigurationRepository;
+        this.routes = Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, this.routes, "proxy.routes");
     }
 
     @PostConstruct
     public void init() {
+        saveConfigChanges();
         loadConfigFromRepository();
         subscribeToConfigChanges();
     }
 
+    /**
+     * The mapping that applies to an ingress URI, together with the resulting egress URI.
+     */
+    public record Route (
+        ProxyConfiguration.Mapping mapping,
+        URI egressURI
+    ){
+    }
+
     public Optional<URI> findEgressURI(URI ingressURI) {
-        return proxyConfiguration.findEgressURI(ingressURI.toString())
-           .map( egressUri -> {
+        return findRoute(ingressURI).map(Route::egressURI);
+    }
+
+    /**
+     * Resolved routes are cached by ingress URI and the version of the configuration, so a change of the
+     * configuration makes all cached routes obsolete at once; they are evicted as they aren't used anymore.
+     * Hit, miss and eviction counts are published as {@code cache.*} metrics with tag {@code cache=proxy.routes}.
+     * @return the route of the ingress URI, empty if no mapping applies to it
+     */
+    public Optional<Route> findRoute(URI ingressURI) {
+        final ProxyConfiguration configuration = this.proxyConfiguration.get();
+        return routes.get(
+            new RouteKey(configuration.version(), ingressURI.toString()),
+            key -> resolveRoute(configuration, key.ingressURI())
+        );
+    }
+
+    private record RouteKey (
+        long version,
+        String ingressURI
+    ){
+    }
+
+    private static Optional<Route> resolveRoute(ProxyConfiguration configuration, String ingressURI) {
+        return configuration.findMatch(ingressURI)
+           .map( matcher -> {
+               final String egressUri = matcher.egressUri();
                try {
-                   return new URI(egressUri);
+                   return new Route(matcher.mapping(), new URI(egressUri));
                }
                catch (URISyntaxException e ) {
                    throw new RuntimeException("Invalid egressURI mapping: "+egressUri, e);
@@ -70,15 +128,28 @@ public class ConfigurationService {
     }
 
     public Flux<ProxyConfiguration.Mapping> listMappings() {
-        return Flux.fromIterable(this.proxyConfiguration.mappings());
+        return Flux.fromIterable(this.proxyConfiguration.get().mappings());
     }
 
     public Mono<ProxyConfiguration.Mapping> addMapping(ProxyConfiguration.Mapping mapping) {
+        return addMapping(mapping, null, null);
+    }
+
+    /**
+     * @param before the id of the mapping the new mapping is inserted before, if any
+     * @param after the id of the mapping the new mapping is inserted after, if any; the mapping is appended if
+     *              neither is given
+     */
+    public Mono<ProxyConfiguration.Mapping> addMapping(
+        ProxyConfiguration.Mapping mapping,
+        @Nullable String before,
+        @Nullable String after
+    ) {
         return changeProxyConfiguration(config -> {
             if (config.findMapping(mapping.id()).isPresent()) {
                 throw new IllegalArgumentException("Non-unique identifier in new mapping: "+mapping.id());
             }
-            config.addMapping(mapping);
+            return config.withMapping(mapping, before, after);
         }  )
         .map( config ->
             config
@@ -87,21 +158,38 @@ public class ConfigurationService {
         );
     }
 
+    /**
+     * Moves the mapping before or after another mapping, or to the end if neither is given.
+     */
+    public Mono<Void> moveMapping(String id, @Nullable String before, @Nullable String after) {
+        return changeProxyConfiguration(config ->
+                config.withMovedMapping(id, before, after)
+                    .orElseThrow( () -> new NoSuchElementException("Could not find mapping with id: "+id) )
+            )
+            .then();
+    }
+
+    /**
+     * Replaces all mappings at once, with a single new snapshot of the configuration.
+     */
+    public Mono<Void> replaceMappings(List<ProxyConfiguration.Mapping> mappings) {
+        return changeProxyConfiguration(config -> new ProxyConfiguration(mappings))
+            .then();
+    }
+
     public Mono<Void> deleteMapping(String id) {
-        return changeProxyConfiguration(config -> {
-                if (! config.removeMapping(id)) {
-                    throw new NoSuchElementException("Could not find mapping with id: "+id);
-                }
-            } )
+        return changeProxyConfiguration(config ->
+                config.withoutMapping(id)
+                    .orElseThrow( () -> new NoSuchElementException("Could not find mapping with id: "+id) )
+            )
             .then();
     }
 
     public Mono<ProxyConfiguration.Mapping> updateMapping(ProxyConfiguration.Mapping mapping) {
-        return changeProxyConfiguration(config -> {
-                if (config.updateMapping(mapping).isEmpty()) {
-                    throw new NoSuchElementException("Could not find mapping with id: "+mapping.id());
-                }
-            }  )
+        return changeProxyConfiguration(config ->
+                config.withUpdatedMapping(mapping)
+                    .orElseThrow( () -> new NoSuchElementException("Could not find mapping with id: "+mapping.id()) )
+            )
             .map( config ->
                 config
                     .findMapping( mapping.id() )
@@ -109,29 +197,60 @@ public class ConfigurationService {
             );
     }
 
-    private Mono<ProxyConfigurationEntity> withLatestProxyConfiguration(Consumer<ProxyConfiguration> configConsumer) {
+    private Mono<ProxyConfiguration> withLatestProxyConfiguration() {
         return proxyConfigurationRepository.findFirstByOrderByCreatedAtDesc()
-            .doOnSuccess( entity -> {
-                this.proxyConfiguration = (entity == null)
-                    ? new ProxyConfiguration()
-                    : entity.configuration();
-                configConsumer.accept(this.proxyConfiguration);
+            .map(ProxyConfigurationEntity::configuration)
+            .defaultIfEmpty(new ProxyConfiguration())
+            .doOnNext( configuration -> {
+                synchronized (this.proxyConfiguration) {
+                    this.proxyConfiguration.set(configuration);
+                }
             });
     }
 
-    private Mono<ProxyConfiguration> changeProxyConfiguration(Consumer<ProxyConfiguration> changingConsumer) {
-        return withLatestProxyConfiguration( changingConsumer )
-            .doOnSuccess( entity ->
-                this.proxyConfigurationRepository
-                    .save( new ProxyConfigurationEntity(this.proxyConfiguration) )
-                    .subscribe()
+    /**
+     * Applies the change to the current snapshot, publishes the resulting snapshot, and saves it. The new snapshot,
+     * including its routing index, is built by the change, so requests keep using the previous snapshot until then.
+     * Changes are applied one at a time, so that none of them gets lost, and saved in the same order. They are only
+     * applied once the saved configuration has been loaded, and fail if it couldn't be loaded.
+     */
+    private Mono<ProxyConfiguration> changeProxyConfiguration(UnaryOperator<ProxyConfiguration> change) {
+        return loaded.asMono().then(Mono.fromCallable( () -> {
+                synchronized (this.proxyConfiguration) {
+                    final ProxyConfiguration changed = change.apply(this.proxyConfiguration.get());
+                    this.proxyConfiguration.set(changed);
+                    final PendingSave pendingSave = new PendingSave(new ProxyConfigurationEntity(changed), Sinks.empty());
+                    this.pendingSaves.emitNext(pendingSave, Sinks.EmitFailureHandler.FAIL_FAST);
+                    return pendingSave;
+                }
+            }))
+            .flatMap( pendingSave -> pendingSave.saved().asMono().thenReturn(pendingSave.entity().configuration()) );
+    }
+
+    private record PendingSave (
+        ProxyConfigurationEntity entity,
+        Sinks.Empty<Void> saved
+    ){
+    }
+
+    private void saveConfigChanges() {
+        pendingSaves.asFlux()
+            .concatMap( pendingSave -> this.proxyConfigurationRepository
+                .save(pendingSave.entity())
+                .doOnSuccess( entity -> pendingSave.saved().tryEmitEmpty() )
+                .doOnError( e -> pendingSave.saved().tryEmitError(e) )
+                // the failure is reported to the change, later changes are still saved
+                .onErrorResume( e -> Mono.empty() )
             )
-            .thenReturn ( this.proxyConfiguration );
+            .subscribe();
     }
 
     private void loadConfigFromRepository() {
-        withLatestProxyConfiguration(config -> {})
-            .subscribe();
+        withLatestProxyConfiguration()
+            .subscribe(
+                configuration -> loaded.tryEmitEmpty(),
+                loaded::tryEmitError
+            );
     }
 
 
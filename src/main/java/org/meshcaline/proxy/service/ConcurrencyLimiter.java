@@ -0,0 +1,158 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking semaphore with a fixed number of permits. Waiting acquisitions are queued per party
+ * (e.g. per ingress request), and released permits are granted to the parties round robin, so that
+ * a party with many waiting acquisitions can't starve the others.
+ */
+class ConcurrencyLimiter {
+
+    /**
+     * A granted permit; releasing it more than once has no effect.
+     */
+    interface Permit {
+        void release();
+    }
+
+    private static final class Waiter {
+        final Object party;
+        final MonoSink<Permit> sink;
+        boolean granted;
+
+        Waiter(Object party, MonoSink<Permit> sink) {
+            this.party = party;
+            this.sink = sink;
+        }
+    }
+
+    private final int limit;
+    private final Map<Object, ArrayDeque<Waiter>> queues = new LinkedHashMap<>();
+    private int inUse;
+    private int queued;
+
+    ConcurrencyLimiter(int limit) {
+        this.limit = limit;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    synchronized int inUse() {
+        return inUse;
+    }
+
+    synchronized int queued() {
+        return queued;
+    }
+
+    /**
+     * @return a permit as soon as one is available for the party
+     */
+    Mono<Permit> acquire(Object party) {
+        return Mono.create( sink -> {
+            final Waiter waiter = new Waiter(party, sink);
+            final boolean granted;
+            synchronized (this) {
+                granted = inUse < limit && queued == 0;
+                if (granted) {
+                    inUse++;
+                    waiter.granted = true;
+                } else {
+                    queues.computeIfAbsent(party, p -> new ArrayDeque<>()).add(waiter);
+                    queued++;
+                }
+            }
+            sink.onCancel( () -> cancel(waiter) );
+            if (granted) {
+                sink.success(newPermit());
+            }
+        });
+    }
+
+    private void cancel(Waiter waiter) {
+        final boolean granted;
+        synchronized (this) {
+            granted = waiter.granted;
+            if (!granted) {
+                final ArrayDeque<Waiter> queue = queues.get(waiter.party);
+                if (queue != null && queue.remove(waiter)) {
+                    queued--;
+                    if (queue.isEmpty()) queues.remove(waiter.party);
+                }
+            }
+        }
+        if (granted) {
+            // the permit was granted, but didn't reach the subscriber anymore
+            release();
+        }
+    }
+
+    private Permit newPermit() {
+        final AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                release();
+            }
+        };
+    }
+
+    private void release() {
+        final Waiter next;
+        synchronized (this) {
+            next = nextWaiter();
+            if (next == null) {
+                inUse--;
+                return;
+            }
+            // the permit passes on to the next waiter, so inUse stays the same
+            next.granted = true;
+        }
+        next.sink.success(newPermit());
+    }
+
+    /**
+     * @return the first waiter of the party that has been waiting the longest for its turn; the party is moved
+     * to the end of the rotation
+     */
+    private Waiter nextWaiter() {
+        final Iterator<Map.Entry<Object, ArrayDeque<Waiter>>> parties = queues.entrySet().iterator();
+        if (!parties.hasNext()) return null;
+        final Map.Entry<Object, ArrayDeque<Waiter>> party = parties.next();
+        parties.remove();
+        final Waiter next = party.getValue().poll();
+        queued--;
+        if (!party.getValue().isEmpty()) {
+            queues.put(party.getKey(), party.getValue());
+        }
+        return next;
+    }
+}
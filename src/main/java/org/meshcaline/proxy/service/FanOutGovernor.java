@@ -0,0 +1,178 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.ResponseEntity;
+import org.springframework.lang.Nullable;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Request scoped governor of the follow-up tasks of an ingress request. A follow-up task is pruned, instead of
+ * being fetched, if it would repeat the URI and fragment of one of its ancestors (a cycle), if it is nested deeper
+ * than the maximum depth, or once the ingress request has reached its maximum number of follow-ups or of bytes
+ * received for them. Tasks are admitted in the order they are created, and the tasks of one response in the order
+ * of the response.
+ */
+class FanOutGovernor {
+
+    private static final String ATTRIBUTE = FanOutGovernor.class.getName();
+
+    /**
+     * @param maxDepth maximum nesting of follow-up tasks; the tasks of the ingress response have depth 1
+     * @param maxFollowUps maximum number of follow-up tasks per ingress request
+     * @param maxBytes maximum number of bytes received for the follow-up tasks of an ingress request
+     */
+    record Limits (
+        int maxDepth,
+        int maxFollowUps,
+        long maxBytes
+    ){
+        static final Limits UNLIMITED = new Limits(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    enum Reason {
+        CYCLE,
+        MAX_DEPTH,
+        MAX_FOLLOW_UPS,
+        MAX_BYTES,
+        /** the URL isn't mapped, and refers to the proxy itself */
+        SELF_REFERENCE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    /**
+     * The ancestry of a follow-up task: the URIs and fragments of the tasks it has been created by.
+     */
+    record Path (
+        URI uri,
+        @Nullable String fragment,
+        @Nullable Path parent,
+        int depth
+    ){
+        static Path root(URI uri) {
+            return new Path(uri, null, null, 0);
+        }
+
+        Path child(URI uri, String fragment) {
+            return new Path(uri, fragment, this, depth + 1);
+        }
+
+        boolean contains(URI uri, String fragment) {
+            for (Path path = this; path != null; path = path.parent()) {
+                if (path.uri().equals(uri) && Objects.equals(path.fragment(), fragment)) return true;
+            }
+            return false;
+        }
+    }
+
+    record Pruned (
+        ProxyQueryProcessor.FollowUpTask task,
+        Reason reason
+    ){
+    }
+
+    private final Limits limits;
+    private final List<Pruned> pruned = new ArrayList<>();
+    private int followUps;
+    private int requests;
+    private long bytes;
+
+    private FanOutGovernor(Limits limits) {
+        this.limits = limits;
+    }
+
+    static void start(ServerWebExchange exchange, Limits limits) {
+        exchange.getAttributes().put(ATTRIBUTE, new FanOutGovernor(limits));
+    }
+
+    static FanOutGovernor of(ServerWebExchange exchange) {
+        return (FanOutGovernor) exchange.getAttributes()
+            .computeIfAbsent(ATTRIBUTE, name -> new FanOutGovernor(Limits.UNLIMITED));
+    }
+
+    /**
+     * Decides whether the follow-up task may be fetched.
+     * @param path the ancestry of the task, including the task itself
+     * @param selfReference whether the URL of the task isn't mapped and refers to the proxy itself
+     * @return the reason why the task has been pruned, if it may not be fetched
+     */
+    synchronized Optional<Reason> admit(ProxyQueryProcessor.FollowUpTask task, Path path, boolean selfReference) {
+        final Reason reason;
+        if (selfReference) {
+            reason = Reason.SELF_REFERENCE;
+        } else if (path.parent() != null && path.parent().contains(path.uri(), path.fragment())) {
+            reason = Reason.CYCLE;
+        } else if (path.depth() > limits.maxDepth()) {
+            reason = Reason.MAX_DEPTH;
+        } else if (followUps >= limits.maxFollowUps()) {
+            reason = Reason.MAX_FOLLOW_UPS;
+        } else if (bytes >= limits.maxBytes()) {
+            reason = Reason.MAX_BYTES;
+        } else {
+            followUps++;
+            return Optional.empty();
+        }
+        pruned.add(new Pruned(task, reason));
+        return Optional.of(reason);
+    }
+
+    /**
+     * @return the response, with the bytes of its body counted against the limit of the ingress request
+     */
+    ResponseEntity<Flux<DataBuffer>> counted(ResponseEntity<Flux<DataBuffer>> response) {
+        synchronized (this) {
+            requests++;
+        }
+        return new ResponseEntity<>(
+            Optional.ofNullable(response.getBody()).orElse(Flux.empty())
+                .doOnNext( buffer -> received(buffer.readableByteCount()) ),
+            response.getHeaders(),
+            response.getStatusCode()
+        );
+    }
+
+    private synchronized void received(int count) {
+        bytes += count;
+    }
+
+    /**
+     * @return the number of follow-up responses received; a batch response counts once
+     */
+    synchronized int requests() {
+        return requests;
+    }
+
+    synchronized List<Pruned> pruned() {
+        return new ArrayList<>(pruned);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Request scoped deadline for the follow-up tasks of an ingress request. Once the deadline has expired, the
+ * follow-ups still in progress are cancelled, and the follow-up tasks that didn't complete are reported as skipped.
+ */
+class FollowUpDeadline {
+
+    private static final String ATTRIBUTE = FollowUpDeadline.class.getName();
+    private static final FollowUpDeadline NONE = new FollowUpDeadline(null);
+
+    private final Instant deadline;
+    private final Set<ProxyQueryProcessor.FollowUpTask> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private FollowUpDeadline(Instant deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Starts the deadline of the ingress request.
+     * @param timeout the time the follow-up tasks may take, counted from now; no deadline if empty
+     */
+    static void start(ServerWebExchange exchange, Optional<Duration> timeout) {
+        timeout.ifPresent( t -> exchange.getAttributes().put(ATTRIBUTE, new FollowUpDeadline(Instant.now().plus(t))) );
+    }
+
+    static FollowUpDeadline of(ServerWebExchange exchange) {
+        return exchange.getAttributeOrDefault(ATTRIBUTE, NONE);
+    }
+
+    /**
+     * @return the events of the follow-ups, completed early (and the follow-ups cancelled) once the deadline expires
+     */
+    <T> Flux<T> limit(Flux<T> followUps) {
+        if (deadline == null) return followUps;
+        return followUps.takeUntilOther(Mono.defer( () -> Mono.delay(remaining()) ));
+    }
+
+    /**
+     * Records follow-up tasks that have to complete before the deadline.
+     */
+    void register(Collection<ProxyQueryProcessor.FollowUpTask> tasks) {
+        if (deadline == null || tasks.isEmpty()) return;
+        synchronized (pending) {
+            pending.addAll(tasks);
+        }
+    }
+
+    void completed(ProxyQueryProcessor.FollowUpTask task) {
+        if (deadline == null) return;
+        synchronized (pending) {
+            pending.remove(task);
+        }
+    }
+
+    /**
+     * @return the registered follow-up tasks that haven't completed
+     */
+    List<ProxyQueryProcessor.FollowUpTask> skipped() {
+        synchronized (pending) {
+            return new ArrayList<>(pending);
+        }
+    }
+
+    private Duration remaining() {
+        final Duration remaining = Duration.between(Instant.now(), deadline);
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
+}
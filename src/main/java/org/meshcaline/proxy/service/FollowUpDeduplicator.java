@@ -0,0 +1,188 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import org.meshcaline.proxy.multipart.DefaultPartEvents;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.codec.multipart.PartEvent;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Request scoped registry that collapses follow-up tasks of the same ingress request, which resolve to the
+ * same egress URI and apply the same fragment. Only the first of them fetches from the proxied service;
+ * duplicates that are subscribed before its first part event arrives receive the same part events.
+ * <p>
+ * Nothing is recorded: a duplicate that comes later fetches the resource again. The part events are passed on
+ * as they are, unless there are several subscribers; then each subscriber gets a copy of their content.
+ * The follow-ups in progress are cancelled once all of their subscribers have cancelled, or with
+ * {@link #cancel()} once the ingress request is finished.
+ */
+class FollowUpDeduplicator {
+
+    private static final String ATTRIBUTE = FollowUpDeduplicator.class.getName();
+
+    record Key (
+        URI egressUri,
+        QueryPlan.RootOperation rootOperation
+    ){
+    }
+
+    private final Map<Key, SharedFollowUp> followUps = new ConcurrentHashMap<>();
+    private final AtomicInteger savedCalls = new AtomicInteger();
+
+    static FollowUpDeduplicator of(ServerWebExchange exchange) {
+        return (FollowUpDeduplicator) exchange.getAttributes()
+            .computeIfAbsent(ATTRIBUTE, name -> new FollowUpDeduplicator());
+    }
+
+    /**
+     * @return the part events of the follow-up with the given key; they are only created by the given supplier,
+     * if no follow-up with the same key can be joined at the time of the subscription
+     */
+    Flux<PartEvent> deduplicate(Key key, DataBufferFactory bufferFactory, Supplier<Flux<PartEvent>> followUp) {
+        return Flux.defer( () -> {
+            final Sinks.Many<PartEvent> subscriber = Sinks.many().unicast().onBackpressureBuffer();
+            final SharedFollowUp[] created = { null };
+            final SharedFollowUp shared = followUps.compute(key, (k, current) -> {
+                if (current != null && current.join(subscriber)) {
+                    return current;
+                }
+                created[0] = new SharedFollowUp(k, bufferFactory, subscriber);
+                return created[0];
+            });
+            if (created[0] == null) {
+                savedCalls.incrementAndGet();
+            } else {
+                // outside of compute, as the follow-up may complete right away and remove itself
+                created[0].connect(followUp.get());
+            }
+            return subscriber.asFlux()
+                .doOnCancel( () -> shared.leave(subscriber) );
+        });
+    }
+
+    /**
+     * Cancels the follow-ups that are still in progress.
+     */
+    void cancel() {
+        followUps.values().forEach(SharedFollowUp::dispose);
+    }
+
+    /**
+     * @return the number of follow-up requests that have been saved so far
+     */
+    int savedCalls() {
+        return savedCalls.get();
+    }
+
+    /**
+     * A follow-up in progress and its subscribers. Subscribers may only join until the first part event
+     * has been emitted, so that no part event needs to be kept for later subscribers.
+     */
+    private final class SharedFollowUp {
+        private final Key key;
+        private final DataBufferFactory bufferFactory;
+        private final List<Sinks.Many<PartEvent>> subscribers = new ArrayList<>();
+        private boolean started;
+        private boolean cancelled;
+        private Disposable connection;
+
+        SharedFollowUp(Key key, DataBufferFactory bufferFactory, Sinks.Many<PartEvent> subscriber) {
+            this.key = key;
+            this.bufferFactory = bufferFactory;
+            this.subscribers.add(subscriber);
+        }
+
+        synchronized boolean join(Sinks.Many<PartEvent> subscriber) {
+            if (started) return false;
+            subscribers.add(subscriber);
+            return true;
+        }
+
+        void connect(Flux<PartEvent> events) {
+            final Disposable connection = events
+                .doFinally( signal -> followUps.remove(key, this) )
+                .subscribe(
+                    this::emit,
+                    e -> terminate( subscriber -> subscriber.tryEmitError(e) ),
+                    () -> terminate(Sinks.Many::tryEmitComplete)
+                );
+            synchronized (this) {
+                this.connection = connection;
+                if (cancelled) {
+                    // all subscribers left while we were connecting
+                    connection.dispose();
+                }
+            }
+        }
+
+        private synchronized void emit(PartEvent event) {
+            started = true;
+            if (subscribers.size() == 1) {
+                if (subscribers.get(0).tryEmitNext(event).isFailure()) {
+                    DataBufferUtils.release(event.content());
+                }
+                return;
+            }
+            final DataBuffer buffer = event.content();
+            final byte[] content = new byte[buffer.readableByteCount()];
+            buffer.read(content);
+            DataBufferUtils.release(buffer);
+            subscribers.forEach( subscriber -> subscriber.tryEmitNext(
+                DefaultPartEvents.create(event.headers(), bufferFactory.wrap(content), event.isLast())
+            ));
+        }
+
+        private synchronized void terminate(Consumer<Sinks.Many<PartEvent>> signal) {
+            started = true;
+            subscribers.forEach(signal);
+        }
+
+        synchronized void leave(Sinks.Many<PartEvent> subscriber) {
+            subscribers.remove(subscriber);
+            if (subscribers.isEmpty()) {
+                dispose();
+            }
+        }
+
+        synchronized void dispose() {
+            // no one may join a cancelled follow-up
+            started = true;
+            cancelled = true;
+            if (connection != null) {
+                connection.dispose();
+            }
+        }
+    }
+}
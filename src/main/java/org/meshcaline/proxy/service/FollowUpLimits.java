@@ -0,0 +1,238 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.meshcaline.proxy.configuration.model.ProxyConfiguration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of concurrent follow-up requests per ingress request, per egress host, and per mapping
+ * (if the mapping declares a limit). Follow-up requests that exceed a limit are queued; the queues of the
+ * host and mapping limits are served round robin across the ingress requests, so that one request with a
+ * large fan-out can't starve the others.
+ * <p>
+ * The hrefs of follow-ups are taken from the proxied responses, so only the egress hosts of mapped follow-ups get
+ * a limit of their own; follow-ups to hosts that aren't configured share the limit of {@value #UNMAPPED_HOSTS}.
+ * Host limits that haven't been used for a while are dropped, and their number is bounded.
+ * <p>
+ * Active and queued follow-ups are published as {@code proxy.followups.active} and {@code proxy.followups.queued}
+ * with tags {@code scope} ({@code host} or {@code mapping}) and {@code target}, the time spent in the queues as
+ * {@code proxy.followups.queue.wait}.
+ */
+@Component
+public class FollowUpLimits {
+
+    private static final String ATTRIBUTE = FollowUpLimits.class.getName();
+    private static final String RELEASES_ATTRIBUTE = ATTRIBUTE + ".releases";
+    static final String UNMAPPED_HOSTS = "unmapped";
+    private static final int MAX_HOST_LIMITERS = 1_000;
+    private static final Duration HOST_LIMITER_IDLE_TIME = Duration.ofMinutes(10);
+
+    private final int perRequest;
+    private final int perHost;
+    private final Cache<String, ConcurrencyLimiter> hostLimiters;
+    private final Map<String, ConcurrencyLimiter> mappingLimiters = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+    private final Timer queueWait;
+
+    public FollowUpLimits(
+        @Value("${proxy.followups.concurrency.per-request:32}") int perRequest,
+        @Value("${proxy.followups.concurrency.per-host:64}") int perHost,
+        MeterRegistry meterRegistry
+    ) {
+        this.perRequest = perRequest;
+        this.perHost = perHost;
+        this.meterRegistry = meterRegistry;
+        this.hostLimiters = Caffeine.newBuilder()
+            .maximumSize(MAX_HOST_LIMITERS)
+            .expireAfterAccess(HOST_LIMITER_IDLE_TIME)
+            // runs while the entry is removed, so the gauges of a new limiter of the host can't be removed instead
+            .<String, ConcurrencyLimiter>evictionListener( (host, limiter, cause) -> unregister("host", host) )
+            .build();
+        this.queueWait = Timer.builder("proxy.followups.queue.wait")
+            .description("Time follow-up requests waited for the concurrency limits")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Performs the follow-up request once it is within all limits. The request counts against the limits
+     * until its response body is complete, or at the latest until {@link #releaseAll(ServerWebExchange)} is
+     * called at the end of the ingress request, in case the body is never consumed.
+     * @param mapping the mapping of the follow-up request, if there is one
+     */
+    public Mono<ResponseEntity<Flux<DataBuffer>>> execute(
+        ServerWebExchange exchange,
+        URI uri,
+        Optional<ProxyConfiguration.Mapping> mapping,
+        Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> request
+    ) {
+        final List<ConcurrencyLimiter> limiters = new ArrayList<>();
+        if (perRequest > 0) {
+            limiters.add((ConcurrencyLimiter) exchange.getAttributes()
+                .computeIfAbsent(ATTRIBUTE, name -> new ConcurrencyLimiter(perRequest)));
+        }
+        mapping
+            .filter( m -> m.options().maxConcurrentFollowUps() != null && m.options().maxConcurrentFollowUps() > 0 )
+            .ifPresent( m -> limiters.add(mappingLimiter(m)) );
+        if (perHost > 0 && uri.getHost() != null) {
+            limiters.add(hostLimiter(mapping.isPresent() ? uri.getHost() : UNMAPPED_HOSTS));
+        }
+        final Object party = exchange.getRequest().getId();
+        final long start = System.nanoTime();
+        return Mono.usingWhen(
+            acquireAll(limiters, party, new ArrayList<>())
+                .map( permits -> {
+                    queueWait.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    return new Release(permits, releases(exchange));
+                }),
+            release -> request.get()
+                .map( entity -> new ResponseEntity<>(
+                    Optional.ofNullable(entity.getBody()).orElse(Flux.empty()).doFinally( signal -> release.run() ),
+                    entity.getHeaders(),
+                    entity.getStatusCode()
+                ))
+                .switchIfEmpty(Mono.fromRunnable(release)),
+            // once the entity is emitted, the permits are released with its body
+            release -> Mono.empty(),
+            (release, e) -> Mono.fromRunnable(release),
+            release -> Mono.fromRunnable(release)
+        );
+    }
+
+    /**
+     * Releases the permits of the follow-up requests of the ingress request whose response bodies haven't been
+     * consumed (or not to their end).
+     */
+    public void releaseAll(ServerWebExchange exchange) {
+        final Set<Release> releases = exchange.getAttribute(RELEASES_ATTRIBUTE);
+        if (releases != null) {
+            List.copyOf(releases).forEach(Release::run);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Release> releases(ServerWebExchange exchange) {
+        return (Set<Release>) exchange.getAttributes()
+            .computeIfAbsent(RELEASES_ATTRIBUTE, name -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Releases the permits of one follow-up request, at most once.
+     */
+    private static final class Release implements Runnable {
+
+        private final List<ConcurrencyLimiter.Permit> permits;
+        private final Set<Release> pending;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Release(List<ConcurrencyLimiter.Permit> permits, Set<Release> pending) {
+            this.permits = permits;
+            this.pending = pending;
+            pending.add(this);
+        }
+
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                pending.remove(this);
+                permits.forEach(ConcurrencyLimiter.Permit::release);
+            }
+        }
+    }
+
+    /**
+     * Acquires the permits one after the other, always in the same order, so that concurrent acquisitions
+     * can't dead-lock.
+     */
+    private Mono<List<ConcurrencyLimiter.Permit>> acquireAll(
+        List<ConcurrencyLimiter> limiters,
+        Object party,
+        List<ConcurrencyLimiter.Permit> permits
+    ) {
+        if (permits.size() == limiters.size()) {
+            return Mono.just(permits);
+        }
+        return limiters.get(permits.size()).acquire(party)
+            .flatMap( permit -> {
+                permits.add(permit);
+                return acquireAll(limiters, party, permits);
+            })
+            .doOnCancel( () -> permits.forEach(ConcurrencyLimiter.Permit::release) );
+    }
+
+    private ConcurrencyLimiter hostLimiter(String host) {
+        return hostLimiters.get(host, h -> register(new ConcurrencyLimiter(perHost), "host", h));
+    }
+
+    private ConcurrencyLimiter mappingLimiter(ProxyConfiguration.Mapping mapping) {
+        final int limit = mapping.options().maxConcurrentFollowUps();
+        return mappingLimiters.compute(mapping.id(), (id, limiter) -> {
+            if (limiter != null && limiter.limit() == limit) {
+                return limiter;
+            }
+            if (limiter != null) {
+                // the limit of the mapping has been changed in the meantime, the gauges still refer to the old limiter
+                unregister("mapping", id);
+            }
+            return register(new ConcurrencyLimiter(limit), "mapping", id);
+        });
+    }
+
+    private ConcurrencyLimiter register(ConcurrencyLimiter limiter, String scope, String target) {
+        Gauge.builder("proxy.followups.active", limiter, ConcurrencyLimiter::inUse)
+            .description("Follow-up requests in progress")
+            .tags("scope", scope, "target", target)
+            .register(meterRegistry);
+        Gauge.builder("proxy.followups.queued", limiter, ConcurrencyLimiter::queued)
+            .description("Follow-up requests waiting for a concurrency limit")
+            .tags("scope", scope, "target", target)
+            .register(meterRegistry);
+        return limiter;
+    }
+
+    private void unregister(String scope, String target) {
+        for (String name : List.of("proxy.followups.active", "proxy.followups.queued")) {
+            meterRegistry.find(name).tags("scope", scope, "target", target).meters().forEach(meterRegistry::remove);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Precompiled URL template of a {@code @GET} directive, e.g. {@code ./${address.city_id}/streets}. The template is
+ * split once into literal segments and placeholders with their field paths, and is then expanded for each source
+ * object without parsing it again. Dots in a placeholder refer to nested fields; {@code $${...}} escapes a literal
+ * {@code ${...}}.
+ * <p>
+ * Values are percent-encoded (UTF-8), except for the unreserved characters of RFC 3986, so a value can't change
+ * the structure of the URL. As ids are typically unreserved, they are appended as they are.
+ */
+final class HrefTemplate {
+
+    private sealed interface Segment permits Literal, Placeholder {
+    }
+
+    private record Literal (
+        String text
+    ) implements Segment {
+    }
+
+    private record Placeholder (
+        String name,
+        String[] path
+    ) implements Segment {
+    }
+
+    // expansion happens synchronously on the processing thread, so the buffer can be reused
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial( () -> new StringBuilder(256) );
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String template;
+    private final Segment[] segments;
+
+    private HrefTemplate(String template, Segment[] segments) {
+        this.template = template;
+        this.segments = segments;
+    }
+
+    static HrefTemplate compile(String template) {
+        final List<Segment> segments = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            final char c = template.charAt(i);
+            if (c == '$' && template.startsWith("$${", i)) {
+                literal.append("${");
+                i += 3;
+            }
+            else if (c == '$' && template.startsWith("${", i) && template.indexOf('}', i + 2) > 0) {
+                final int end = template.indexOf('}', i + 2);
+                if (!literal.isEmpty()) {
+                    segments.add(new Literal(literal.toString()));
+                    literal.setLength(0);
+                }
+                final String name = template.substring(i + 2, end);
+                segments.add(new Placeholder(name, name.split("\\.")));
+                i = end + 1;
+            }
+            else {
+                literal.append(c);
+                i++;
+            }
+        }
+        if (!literal.isEmpty()) {
+            segments.add(new Literal(literal.toString()));
+        }
+        return new HrefTemplate(template, segments.toArray(Segment[]::new));
+    }
+
+    /**
+     * @return the template with the placeholders replaced by the fields of the source object
+     * @throws IllegalArgumentException if the source object lacks a field of the template
+     */
+    String expand(JsonNode source) {
+        final StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        for (Segment segment : segments) {
+            if (segment instanceof Literal literal) {
+                buffer.append(literal.text());
+            }
+            else if (segment instanceof Placeholder placeholder) {
+                appendEncoded(buffer, resolve(source, placeholder).asText());
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * @param preserved the name of a placeholder that is kept, to be expanded later with
+     *                  {@link #expand(String, Collection)}
+     * @return the template with the other placeholders replaced by the fields of the source object
+     * @throws IllegalArgumentException if the source object lacks a field of the template
+     */
+    HrefTemplate expand(JsonNode source, String preserved) {
+        final List<Segment> expanded = new ArrayList<>();
+        final StringBuilder template = new StringBuilder();
+        final StringBuilder literal = new StringBuilder();
+        for (Segment segment : segments) {
+            if (segment instanceof Literal text) {
+                literal.append(text.text());
+            }
+            else if (segment instanceof Placeholder placeholder) {
+                if (placeholder.name().equals(preserved)) {
+                    addLiteral(expanded, template, literal);
+                    expanded.add(placeholder);
+                    template.append("${").append(preserved).append('}');
+                } else {
+                    appendEncoded(literal, resolve(source, placeholder).asText());
+                }
+            }
+        }
+        addLiteral(expanded, template, literal);
+        return new HrefTemplate(template.toString(), expanded.toArray(Segment[]::new));
+    }
+
+    /**
+     * @return the template with the placeholder replaced by the values, separated by commas
+     * @throws IllegalArgumentException if the template contains any other placeholder
+     */
+    String expand(String name, Collection<String> values) {
+        final StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        for (Segment segment : segments) {
+            if (segment instanceof Literal literal) {
+                buffer.append(literal.text());
+            }
+            else if (segment instanceof Placeholder placeholder) {
+                if (!placeholder.name().equals(name)) {
+                    throw new IllegalArgumentException("missing attribute " + placeholder.name() + " for href " + template);
+                }
+                boolean first = true;
+                for (String value : values) {
+                    if (!first) buffer.append(',');
+                    appendEncoded(buffer, value);
+                    first = false;
+                }
+            }
+        }
+        return buffer.toString();
+    }
+
+    private static void addLiteral(List<Segment> segments, StringBuilder template, StringBuilder literal) {
+        if (literal.isEmpty()) return;
+        segments.add(new Literal(literal.toString()));
+        // keep the template parseable, expanded values are encoded and never contain a placeholder
+        template.append(literal.toString().replace("${", "$${"));
+        literal.setLength(0);
+    }
+
+    private JsonNode resolve(JsonNode source, Placeholder placeholder) {
+        JsonNode node = source;
+        for (String name : placeholder.path()) {
+            node = node.get(name);
+            if (node == null || node.isNull()) {
+                throw new IllegalArgumentException("missing attribute " + placeholder.name() + " for href " + template);
+            }
+        }
+        return node;
+    }
+
+    private static void appendEncoded(StringBuilder buffer, String value) {
+        int i = 0;
+        while (i < value.length() && isUnreserved(value.charAt(i))) i++;
+        if (i == value.length()) {
+            buffer.append(value);
+            return;
+        }
+        buffer.append(value, 0, i);
+        for (byte b : value.substring(i).getBytes(StandardCharsets.UTF_8)) {
+            final char c = (char) (b & 0xFF);
+            if (isUnreserved(c)) {
+                buffer.append(c);
+            } else {
+                buffer.append('%').append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+            }
+        }
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HrefTemplate other && template.equals(other.template);
+    }
+
+    @Override
+    public int hashCode() {
+        return template.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.lang.Nullable;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a JSON document that arrives as stream of {@link DataBuffer}s into the elements of its top
+ * level array, using Jackson's non-blocking parser. Each element is emitted as soon as its last token
+ * has arrived, enclosed by markers for the start and the end of the array.
+ * A document that isn't an array is emitted as single value once it is complete.
+ * <p>
+ * Only the tokens of the element in progress are held in memory; an element that takes more than
+ * {@code maxElementSize} bytes of the source fails the tokenization with a {@link DataBufferLimitException}.
+ * <p>
+ * Not thread-safe; a new tokenizer is created for each tokenized document.
+ */
+class JsonElementTokenizer {
+
+    enum Kind { ARRAY_START, ARRAY_ELEMENT, ARRAY_END, VALUE }
+
+    record Element (
+        Kind kind,
+        @Nullable TokenBuffer tokens
+    ){
+    }
+
+    private final ObjectMapper objectMapper;
+    private final long maxElementSize;
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+    private TokenBuffer current;
+    // bytes of the source fed since the current element started
+    private long currentSize;
+    private int depth;
+    private boolean topLevelArray;
+    private boolean started;
+
+    private JsonElementTokenizer(ObjectMapper objectMapper, long maxElementSize) throws IOException {
+        this.objectMapper = objectMapper;
+        this.maxElementSize = maxElementSize;
+        this.parser = objectMapper.createNonBlockingByteArrayParser();
+        this.feeder = (ByteArrayFeeder) this.parser.getNonBlockingInputFeeder();
+    }
+
+    static Flux<Element> tokenize(Flux<DataBuffer> source, ObjectMapper objectMapper, long maxElementSize) {
+        return Flux.defer( () -> {
+            final JsonElementTokenizer tokenizer;
+            try {
+                tokenizer = new JsonElementTokenizer(objectMapper, maxElementSize);
+            } catch (IOException e) {
+                return Flux.error(new RuntimeException("Failed to create JSON parser", e));
+            }
+            return source
+                .concatMapIterable(tokenizer::feed)
+                .concatWith(Flux.defer( () -> Flux.fromIterable(tokenizer.endOfInput()) ))
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+        });
+    }
+
+    private List<Element> feed(DataBuffer dataBuffer) {
+        final byte[] bytes = new byte[dataBuffer.readableByteCount()];
+        dataBuffer.read(bytes);
+        DataBufferUtils.release(dataBuffer);
+        try {
+            feeder.feedInput(bytes, 0, bytes.length);
+            final List<Element> elements = parseAvailableTokens();
+            if (current != null) {
+                currentSize += bytes.length;
+                if (currentSize > maxElementSize) {
+                    throw new DataBufferLimitException("Exceeded limit on max bytes per JSON element: " + maxElementSize);
+                }
+            }
+            return elements;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse JSON response", e);
+        }
+    }
+
+    private List<Element> endOfInput() {
+        feeder.endOfInput();
+        try {
+            return parseAvailableTokens();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse JSON response", e);
+        }
+    }
+
+    private List<Element> parseAvailableTokens() throws IOException {
+        final List<Element> elements = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.NOT_AVAILABLE && token != null) {
+            if (!started) {
+                started = true;
+                if (token == JsonToken.START_ARRAY) {
+                    // the brackets of the top level array aren't part of any element
+                    topLevelArray = true;
+                    elements.add(new Element(Kind.ARRAY_START, null));
+                    continue;
+                }
+            }
+            if (topLevelArray && depth == 0 && token == JsonToken.END_ARRAY) {
+                elements.add(new Element(Kind.ARRAY_END, null));
+                continue;
+            }
+            if (current == null) {
+                current = new TokenBuffer(objectMapper, false);
+            }
+            current.copyCurrentEvent(parser);
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd()) {
+                depth--;
+            }
+            if (depth == 0) {
+                elements.add(new Element(topLevelArray ? Kind.ARRAY_ELEMENT : Kind.VALUE, current));
+                current = null;
+                currentSize = 0;
+            }
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import org.springframework.http.codec.multipart.PartEvent;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Function;
+
+/**
+ * Merges the parts of several sources in the order of the sources, while the sources are fetched concurrently.
+ * Parts of sources that complete before their predecessors are held in a reorder buffer. At most {@code window}
+ * sources are in progress at the same time, and once the buffered parts exceed {@code maxBufferedBytes}, further
+ * sources are only started when the buffer has been drained below the limit again.
+ * <p>
+ * A source that waits for the buffer only waits for the parts of its predecessors, so the merge can't dead-lock.
+ * As sources that are already in progress aren't stopped, the limit can be exceeded by the parts of those.
+ */
+class OrderedMerge {
+
+    private final long maxBufferedBytes;
+    private final Queue<MonoSink<Void>> waiting = new ArrayDeque<>();
+    private long bufferedBytes;
+
+    private OrderedMerge(long maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    static <T> Flux<PartEvent> merge(
+        Flux<T> sources,
+        Function<T, Flux<PartEvent>> parts,
+        int window,
+        long maxBufferedBytes
+    ) {
+        final OrderedMerge merge = new OrderedMerge(maxBufferedBytes);
+        return sources
+            .flatMapSequential(
+                source -> merge.awaitRoom()
+                    .thenMany(Flux.defer( () -> parts.apply(source) ))
+                    .doOnNext(merge::buffered),
+                window,
+                1
+            )
+            .doOnNext(merge::emitted);
+    }
+
+    private Mono<Void> awaitRoom() {
+        return Mono.create( sink -> {
+            synchronized (this) {
+                if (bufferedBytes > maxBufferedBytes) {
+                    waiting.add(sink);
+                    sink.onCancel( () -> {
+                        synchronized (this) {
+                            waiting.remove(sink);
+                        }
+                    });
+                    return;
+                }
+            }
+            sink.success();
+        });
+    }
+
+    private synchronized void buffered(PartEvent event) {
+        bufferedBytes += event.content().readableByteCount();
+    }
+
+    private void emitted(PartEvent event) {
+        final Queue<MonoSink<Void>> resumed = new ArrayDeque<>();
+        synchronized (this) {
+            bufferedBytes -= event.content().readableByteCount();
+            while (bufferedBytes <= maxBufferedBytes && !waiting.isEmpty()) {
+                resumed.add(waiting.poll());
+            }
+        }
+        resumed.forEach(MonoSink::success);
+    }
+}
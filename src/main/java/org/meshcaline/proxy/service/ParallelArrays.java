@@ -0,0 +1,138 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Applies a selection set to the elements of large arrays in parallel. Arrays with at least {@code threshold}
+ * elements are split into chunks of {@code chunkSize} elements, which are processed on a bounded work-stealing
+ * pool; smaller arrays, and arrays nested in a chunk that is already processed in parallel, are processed on the
+ * calling thread. The filtered elements and their follow-up tasks are appended in the order of the source array.
+ */
+class ParallelArrays {
+
+    /**
+     * Filters one element of an array, and adds its follow-up tasks to the given list.
+     */
+    interface ElementProcessor {
+        JsonNode process(JsonNode element, List<ProxyQueryProcessor.FollowUpTask> followUpTasks);
+    }
+
+    private record Chunk (
+        List<JsonNode> elements,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ){
+    }
+
+    private final int threshold;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threshold the minimum number of elements of arrays that are processed in parallel, 0 to disable
+     * @param parallelism the number of threads of the pool
+     */
+    ParallelArrays(int threshold, int chunkSize, int parallelism) {
+        this.threshold = threshold;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.pool = threshold > 0
+            ? new ForkJoinPool(
+                Math.max(1, parallelism),
+                pool -> {
+                    final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("query-worker-" + thread.getPoolIndex());
+                    return thread;
+                },
+                null,
+                false
+            )
+            : null;
+    }
+
+    void process(
+        ArrayNode source,
+        ArrayNode target,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks,
+        ElementProcessor processor
+    ) {
+        if (pool == null || source.size() < threshold || ForkJoinTask.getPool() == pool) {
+            for (JsonNode element : source) {
+                target.add(processor.process(element, followUpTasks));
+            }
+            return;
+        }
+        final Chunk[] chunks = new Chunk[(source.size() + chunkSize - 1) / chunkSize];
+        pool.invoke(new ChunkAction(source, processor, chunks, 0, chunks.length));
+        for (Chunk chunk : chunks) {
+            target.addAll(chunk.elements());
+            followUpTasks.addAll(chunk.followUpTasks());
+        }
+    }
+
+    /**
+     * Processes the chunks of a range, splitting the range in halves until it is a single chunk.
+     * Tasks are only ever run in the pool, never serialized.
+     */
+    @SuppressWarnings("serial")
+    private class ChunkAction extends RecursiveAction {
+        private final ArrayNode source;
+        private final ElementProcessor processor;
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        ChunkAction(ArrayNode source, ElementProcessor processor, Chunk[] chunks, int from, int to) {
+            this.source = source;
+            this.processor = processor;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(
+                    new ChunkAction(source, processor, chunks, from, middle),
+                    new ChunkAction(source, processor, chunks, middle, to)
+                );
+                return;
+            }
+            final int start = from * chunkSize;
+            final int end = Math.min(source.size(), start + chunkSize);
+            final List<JsonNode> elements = new ArrayList<>(end - start);
+            final List<ProxyQueryProcessor.FollowUpTask> followUpTasks = new ArrayList<>();
+            for (int i = start; i < end; i++) {
+                elements.add(processor.process(source.get(i), followUpTasks));
+            }
+            chunks[from] = new Chunk(elements, followUpTasks);
+        }
+    }
+}
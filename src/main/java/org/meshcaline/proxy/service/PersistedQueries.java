@@ -0,0 +1,177 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persisted filter queries, referenced by the SHA-256 hash (hex) of their text.
+ * <p>
+ * A client sends the hash instead of the query. If the hash is unknown, the request is answered with status 404 and
+ * header {@code X-MESHCALINE-QUERY-NOT-FOUND}, and the client repeats the request with the hash and the full query,
+ * which is then stored for later requests. These automatically persisted queries are kept in a size-limited cache
+ * (metrics with tag {@code cache=proxy.query.persisted}).
+ * <p>
+ * Queries registered via the admin API are kept until they are removed, and their plans are compiled and pinned in
+ * the {@link QueryPlanCache} on registration. With {@code allowlist-only} only registered queries are accepted.
+ */
+@Component
+public class PersistedQueries {
+
+    public static final String NOT_FOUND_HEADER = "X-MESHCALINE-QUERY-NOT-FOUND";
+
+    public record PersistedQuery (
+        String hash,
+        String query
+    ){
+    }
+
+    private final Cache<String, String> automatic;
+    private final Map<String, String> registered = new ConcurrentHashMap<>();
+    private final QueryPlanCache queryPlanCache;
+    private final boolean allowlistOnly;
+
+    public PersistedQueries(
+        QueryPlanCache queryPlanCache,
+        @Value("${proxy.query.persisted.maximum-size:10000}") long maximumSize,
+        @Value("${proxy.query.persisted.allowlist-only:false}") boolean allowlistOnly,
+        MeterRegistry meterRegistry
+    ) {
+        this.queryPlanCache = queryPlanCache;
+        this.allowlistOnly = allowlistOnly;
+        this.automatic = Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, this.automatic, "proxy.query.persisted");
+    }
+
+    /**
+     * Resolves the filter query of a request.
+     * @param hash the hash sent by the client, if any
+     * @param query the query sent by the client, if any
+     * @return the query, or empty if the request has neither a hash nor a query
+     * @throws ResponseStatusException if the hash is unknown (404), doesn't match the query (400), or the query
+     * isn't registered, while only registered queries are accepted (403)
+     */
+    public Optional<String> resolve(Optional<String> hash, Optional<String> query) {
+        if (hash.isEmpty()) {
+            if (allowlistOnly && query.isPresent() && !registered.containsKey(hash(query.get()))) {
+                throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Query isn't registered");
+            }
+            return query;
+        }
+        final String key = hash.get().trim().toLowerCase(Locale.ROOT);
+        if (query.isEmpty()) {
+            return Optional.ofNullable(registered.get(key))
+                .or( () -> Optional.ofNullable(automatic.getIfPresent(key)) )
+                .or( () -> {
+                    throw new PersistedQueryNotFoundException(key);
+                });
+        }
+        if (!key.equals(hash(query.get()))) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Hash " + key + " doesn't match the query");
+        }
+        if (!registered.containsKey(key)) {
+            if (allowlistOnly) {
+                throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Query " + key + " isn't registered");
+            }
+            automatic.put(key, query.get());
+        }
+        return query;
+    }
+
+    /**
+     * Registers the query until it is removed, and compiles its plan.
+     * @throws graphql.parser.InvalidSyntaxException if the query can't be parsed
+     */
+    public PersistedQuery register(String query) {
+        queryPlanCache.pin(query);
+        final String hash = hash(query);
+        registered.put(hash, query);
+        automatic.invalidate(hash);
+        return new PersistedQuery(hash, query);
+    }
+
+    public List<PersistedQuery> registered() {
+        return registered.entrySet().stream()
+            .map( entry -> new PersistedQuery(entry.getKey(), entry.getValue()) )
+            .sorted(Comparator.comparing(PersistedQuery::hash))
+            .toList();
+    }
+
+    /**
+     * @return whether a query with the hash was registered
+     */
+    public boolean remove(String hash) {
+        final String query = registered.remove(hash.toLowerCase(Locale.ROOT));
+        if (query == null) return false;
+        queryPlanCache.unpin(query);
+        return true;
+    }
+
+    /**
+     * @return the SHA-256 hash of the query as lower case hex string
+     */
+    public static String hash(String query) {
+        try {
+            return HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-256").digest(query.getBytes(StandardCharsets.UTF_8))
+            );
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 isn't supported", e);
+        }
+    }
+
+    /**
+     * The signal for the client to repeat its request with the full query.
+     */
+    public static class PersistedQueryNotFoundException extends ResponseStatusException {
+        private static final long serialVersionUID = 1L;
+
+        private final String hash;
+
+        public PersistedQueryNotFoundException(String hash) {
+            super(HttpStatus.NOT_FOUND, "PersistedQueryNotFound: " + hash);
+            this.hash = hash;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            final HttpHeaders headers = new HttpHeaders();
+            headers.set(NOT_FOUND_HEADER, hash);
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Runs CPU heavy processing of response bodies (parsing, filtering, serialization) on a dedicated, bounded
+ * scheduler instead of the I/O threads, so that large responses don't delay unrelated requests served by the same
+ * event loop. Bodies below the inline threshold are processed on the calling thread, as the hand-off would cost
+ * more than it saves.
+ * <p>
+ * The time the processing waited for a thread is published as {@code proxy.processing.queue.wait}, the time it
+ * took as {@code proxy.processing.run}, and the bodies that were processed inline as {@code proxy.processing.inline}.
+ */
+@Component
+public class ProcessingScheduler {
+
+    private final long inlineThreshold;
+    private final Scheduler scheduler;
+    private final Timer queueWait;
+    private final Timer run;
+    private final Counter inline;
+
+    public ProcessingScheduler(
+        @Value("${proxy.processing.inline-threshold:64KB}") DataSize inlineThreshold,
+        @Value("${proxy.processing.threads:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}") int threads,
+        MeterRegistry meterRegistry
+    ) {
+        this.inlineThreshold = inlineThreshold.toBytes();
+        this.scheduler = Schedulers.newParallel("json-processing", Math.max(1, threads), true);
+        this.queueWait = Timer.builder("proxy.processing.queue.wait")
+            .description("Time the processing of response bodies waited for a processing thread")
+            .register(meterRegistry);
+        this.run = Timer.builder("proxy.processing.run")
+            .description("Time the processing of response bodies took on a processing thread")
+            .register(meterRegistry);
+        this.inline = Counter.builder("proxy.processing.inline")
+            .description("Response bodies below the inline threshold, that were processed on the I/O thread")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Performs the processing of a body of the given size.
+     * @param discard releases the resources of the processing, if it is cancelled before it started
+     */
+    public <T> Mono<T> process(long size, Supplier<T> processing, Runnable discard) {
+        if (size < inlineThreshold) {
+            return Mono.fromSupplier( () -> {
+                inline.increment();
+                return processing.get();
+            });
+        }
+        return Mono.defer( () -> {
+            final long submitted = System.nanoTime();
+            final AtomicBoolean started = new AtomicBoolean();
+            return Mono.fromSupplier( () -> {
+                    // the processing has been cancelled, and its resources discarded, before it started
+                    if (!started.compareAndSet(false, true)) return null;
+                    final long start = System.nanoTime();
+                    queueWait.record(start - submitted, TimeUnit.NANOSECONDS);
+                    try {
+                        return processing.get();
+                    } finally {
+                        run.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    }
+                })
+                .subscribeOn(scheduler)
+                .doOnCancel( () -> {
+                    if (started.compareAndSet(false, true)) discard.run();
+                });
+        });
+    }
+
+    @PreDestroy
+    void dispose() {
+        scheduler.dispose();
+    }
+}
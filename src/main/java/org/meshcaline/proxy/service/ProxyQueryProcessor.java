@@ -24,50 +24,44 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import graphql.language.*;
-import graphql.parser.Parser;
-import org.apache.commons.text.StringSubstitutor;
-import org.apache.commons.text.lookup.StringLookup;
-import org.springframework.lang.NonNull;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
-import java.util.stream.Stream;
 
 @Service
 public class ProxyQueryProcessor {
 
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final QueryPlanCache queryPlanCache;
+    private final ParallelArrays parallelArrays;
 
-    public Result process(JsonNode sourceNode, String filterQuery) {
-        return processDocument(
-            sourceNode,
-            new Parser().parseDocument(filterQuery)
-        );
+    public ProxyQueryProcessor(
+        QueryPlanCache queryPlanCache,
+        @Value("${proxy.query.parallel.threshold:10000}") int parallelThreshold,
+        @Value("${proxy.query.parallel.chunk-size:1000}") int parallelChunkSize,
+        @Value("${proxy.query.parallel.parallelism:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}") int parallelism
+    ) {
+        this.queryPlanCache = queryPlanCache;
+        this.parallelArrays = new ParallelArrays(parallelThreshold, parallelChunkSize, parallelism);
     }
 
-    private record RootOperation (
-        @Nullable String name,
-        SelectionSet selectionSet,
-        List<Directive> directives
-    ){
-        public static RootOperation of(OperationDefinition queryOperation){
-            return new RootOperation(
-                queryOperation.getName(),
-                queryOperation.getSelectionSet(),
-                queryOperation.getDirectives()
-            );
-        }
+    /**
+     * Applies the filter query with the variables (a JSON object, if any) on the source.
+     */
+    public Result process(JsonNode sourceNode, String filterQuery, @Nullable JsonNode variables) {
+        return processPlan(
+            sourceNode,
+            queryPlanCache.get(filterQuery).bind(variables)
+        );
     }
 
-    private Result processDocument(JsonNode sourceNode, Document document) {
-        return document
-            .getDefinitionsOfType(OperationDefinition.class)
-            .stream()
-            .filter( opDef -> OperationDefinition.Operation.QUERY.equals(opDef.getOperation()) )
-            .findFirst()
+    private Result processPlan(JsonNode sourceNode, QueryPlan plan) {
+        return plan
+            .rootOperation()
             .map( queryOperation ->
-                processDocumentRoot(RootOperation.of(queryOperation), sourceNode, document)
+                processDocumentRoot(queryOperation, sourceNode, plan)
             )
             // if the graphQL doesn't contain a query operation,
             // ignore the query and return the source
@@ -75,9 +69,9 @@ public class ProxyQueryProcessor {
     }
 
     private Result processDocumentRoot(
-        RootOperation queryOperation,
+        QueryPlan.RootOperation queryOperation,
         JsonNode sourceNode,
-        Document document
+        QueryPlan plan
     ) {
         final Result result;
         if( sourceNode.isArray() ){
@@ -85,7 +79,7 @@ public class ProxyQueryProcessor {
             final ArrayNode sourceArray = (ArrayNode) sourceNode;
             result = new Result(targetArray, new ArrayList<FollowUpTask>());
             processSelectionSetOnArray(
-                queryOperation.selectionSet(), queryOperation.name(), queryOperation.directives(), sourceArray, document, targetArray, result.getFollowUpTasks()
+                queryOperation.selectionSet(), queryOperation.name(), queryOperation.directives(), sourceArray, plan, targetArray, result.getFollowUpTasks()
             );
         }
         else if( sourceNode.isObject() ) {
@@ -93,7 +87,7 @@ public class ProxyQueryProcessor {
             final ObjectNode sourceObject = (ObjectNode) sourceNode;
             result = new Result(targetObject, new ArrayList<FollowUpTask>());
             processSelectionSetOnObject(
-                queryOperation.selectionSet(), queryOperation.name(), queryOperation.directives(), sourceObject, document, targetObject, result.getFollowUpTasks()
+                queryOperation.selectionSet(), queryOperation.name(), queryOperation.directives(), sourceObject, plan, targetObject, result.getFollowUpTasks()
             );
         }
         else {
@@ -107,15 +101,15 @@ public class ProxyQueryProcessor {
         @Nullable String parentName,
         List<Directive> directives,
         ObjectNode sourceNode,
-        Document document,
+        QueryPlan plan,
         ObjectNode targetNode,
         List<FollowUpTask> followUpTasks
     ) {
-        extractApplicableFields(selectionSet, parentName, sourceNode, document)
-            .forEach( field -> {
-                processField(sourceNode, field, document, targetNode, followUpTasks);
-            });
-        processGetDirective(directives, document, followUpTasks, parentName, sourceNode);
+        final Optional<String> requiredType = searchRequiredType(sourceNode, parentName);
+        for( Field field: plan.applicableFields(selectionSet, requiredType) ) {
+            processField(sourceNode, field, plan, targetNode, followUpTasks);
+        }
+        processGetDirective(directives, plan, followUpTasks, parentName, sourceNode);
     }
 
     public void processSelectionSetOnArray(
@@ -123,58 +117,27 @@ public class ProxyQueryProcessor {
         @Nullable String parentName,
         List<Directive> directives,
         ArrayNode sourceNode,
-        Document document,
+        QueryPlan plan,
         ArrayNode targetNode,
         List<FollowUpTask> followUpTasks
     ) {
-        for( JsonNode element: sourceNode) {
+        parallelArrays.process(sourceNode, targetNode, followUpTasks, (element, elementFollowUpTasks) -> {
             if (element.isObject()) {
                 final ObjectNode targetObject = objectMapper.createObjectNode();
                 processSelectionSetOnObject(
-                    selectionSet, parentName, directives, (ObjectNode) element, document, targetObject, followUpTasks
+                    selectionSet, parentName, directives, (ObjectNode) element, plan, targetObject, elementFollowUpTasks
                 );
-                targetNode.add(targetObject);
+                return targetObject;
             } else if (element.isArray()) {
                 ArrayNode targetArray = objectMapper.createArrayNode();
                 processSelectionSetOnArray(
-                    selectionSet, parentName, directives, (ArrayNode) element, document, targetArray, followUpTasks
+                    selectionSet, parentName, directives, (ArrayNode) element, plan, targetArray, elementFollowUpTasks
                 );
-                targetNode.add(targetArray);
+                return targetArray;
             } else {
                 throw new UnsupportedOperationException("Support for top level JSON arrays elements restricted to Object and Array: "+sourceNode);
             }
-        }
-    }
-
-    private Stream<Field> extractApplicableFields(
-            SelectionSet selectionSet,
-            @Nullable String parentName,
-            JsonNode sourceNode,
-            Document document
-    ) {
-        return selectionSet.getSelections().stream()
-            .flatMap( selection -> {
-                if (Field.class.isAssignableFrom(selection.getClass())) {
-                    return Stream.of((Field) selection);
-                }
-                else if (FragmentSpread.class.isAssignableFrom(selection.getClass())) {
-                    final FragmentSpread fragmentSpread = (FragmentSpread) selection;
-                    final Optional<String> requiredType = searchRequiredType(sourceNode, parentName);
-                    return searchApplicableFragment(document, fragmentSpread.getName(), requiredType)
-                        .stream()
-                        .flatMap(fragment ->
-                            extractApplicableFields(fragment.getSelectionSet(), parentName, sourceNode, document)
-                        );
-                }
-                else if (InlineFragment.class.isAssignableFrom(selection.getClass())) {
-                    final InlineFragment inlineFragment = (InlineFragment) selection;
-                    final Optional<String> requiredType = searchRequiredType(sourceNode, parentName);
-                    if( isTypeMatch(inlineFragment.getTypeCondition(), requiredType)) {
-                        return extractApplicableFields(inlineFragment.getSelectionSet(), parentName, sourceNode, document);
-                    }
-                }
-                return Stream.empty();
-            });
+        });
     }
 
     private Optional<String> searchRequiredType(JsonNode sourceNode, String defaultType){
@@ -182,37 +145,19 @@ public class ProxyQueryProcessor {
                 .map(JsonNode::asText)
                 .or( ()-> Optional.ofNullable(defaultType) );
     }
-    private Optional<FragmentDefinition> searchApplicableFragment(
-            @NonNull Document document,
-            @NonNull String fragmentName,
-            @NonNull Optional<String> requiredType
-    ) {
-        return document.getDefinitionsOfType(FragmentDefinition.class).stream()
-                .filter(fragment ->
-                        fragmentName.equals(fragment.getName())
-                            && isTypeMatch(fragment.getTypeCondition(), requiredType)
-                )
-                .findFirst();
-    }
-
-    private boolean isTypeMatch(@NonNull TypeName typeName, @NonNull Optional<String> requiredType) {
-        return requiredType
-                .map(t -> t.equals(typeName.getName()))
-                .orElse(true);
-    }
 
     public Result processFollowUpTask(JsonNode sourceNode, FollowUpTask followUpTask) {
         return processDocumentRoot(
             followUpTask.rootOperation(),
             sourceNode,
-            followUpTask.document()
+            followUpTask.plan()
         );
     }
 
     private void processField(
             JsonNode sourceNode,
             Field field,
-            Document document,
+            QueryPlan plan,
             ObjectNode targetNode,
             List<FollowUpTask> followUpTasks
     ) {
@@ -223,12 +168,12 @@ public class ProxyQueryProcessor {
             if (fieldValue.isObject()) {
                 targetNode.set(
                     alias,
-                    processObjectField(field, document, followUpTasks, fieldName, (ObjectNode) fieldValue)
+                    processObjectField(field, plan, followUpTasks, fieldName, (ObjectNode) fieldValue)
                 );
             } else if (fieldValue.isArray()) {
                 ArrayNode filteredArrayNode = objectMapper.createArrayNode();
                 processArrayElements(
-                    fieldValue, field, document, filteredArrayNode, followUpTasks
+                    fieldValue, field, plan, filteredArrayNode, followUpTasks
                 );
                 targetNode.set(alias, filteredArrayNode);
             } else {
@@ -242,76 +187,81 @@ public class ProxyQueryProcessor {
 
     private ObjectNode processObjectField(
             Field field,
-            Document document,
+            QueryPlan plan,
             List<FollowUpTask> followUpTasks,
             String fieldName,
             ObjectNode fieldValue
     ) {
         ObjectNode filteredFieldValue = objectMapper.createObjectNode();
         processSelectionSetOnObject(
-            field.getSelectionSet(), fieldName, field.getDirectives(), fieldValue, document, filteredFieldValue, followUpTasks
+            field.getSelectionSet(), fieldName, field.getDirectives(), fieldValue, plan, filteredFieldValue, followUpTasks
         );
         return filteredFieldValue;
     }
 
-    private void processGetDirective(List<Directive> directives, Document document, List<FollowUpTask> followUpTasks, String fieldName, JsonNode fieldValue) {
-        directives.stream()
-            .filter( d -> "GET".equals(d.getName()) )
-            .findFirst()
+    private void processGetDirective(List<Directive> directives, QueryPlan plan, List<FollowUpTask> followUpTasks, String fieldName, JsonNode fieldValue) {
+        plan.getDirective(directives)
             .ifPresent( dir -> {
-                final String fragmentName = findDirectiveArgumentValue(dir, "fragment")
+                final String fragmentName = dir.fragmentName()
                     .orElseThrow( () -> new IllegalArgumentException("missing fragment argument for GET directive of field "+ fieldName) );
-                final String uriTemplate = Optional.ofNullable(fieldValue.get("href"))
-                    .map(JsonNode::asText)
-                    .or( () -> findDirectiveArgumentValue(dir, "href") )
-                    .orElseThrow( () -> new IllegalArgumentException("missing href attribute for GET directive of field "+ fieldName) );
-                final String uri = new StringSubstitutor(key -> fieldValue.get(key).asText()) //TODO: Handle nested fields
-                    .replace(uriTemplate);
-                final Optional<String> fragmentTypeOpt = findDirectiveArgumentValue(dir, "type");
-                final FragmentDefinition fragment =
-                    searchApplicableFragment(document, fragmentName, fragmentTypeOpt)
-                        .orElseThrow( () -> new IllegalArgumentException("missing fragment " + fragmentName ) );
+                // an href attribute of the object itself can't be compiled in advance
+                final Optional<HrefTemplate> uriTemplate = Optional.ofNullable(fieldValue.get("href"))
+                    .map( href -> HrefTemplate.compile(href.asText()) )
+                    .or( dir::href );
+                if (uriTemplate.isEmpty() && dir.batchHref().isEmpty()) {
+                    throw new IllegalArgumentException("missing href attribute for GET directive of field "+ fieldName);
+                }
+                final String uri = uriTemplate
+                    .map( template -> template.expand(fieldValue) )
+                    .orElse(null);
+                final Optional<FollowUpTask.Batch> batch = dir.batchHref()
+                    .map( batchHref -> {
+                        final String batchKey = dir.batchKey().orElse(FollowUpTask.Batch.DEFAULT_KEY);
+                        final JsonNode id = Optional.ofNullable(fieldValue.get(batchKey))
+                            .orElseThrow( () -> new IllegalArgumentException("missing batch key attribute " + batchKey + " for GET directive of field " + fieldName) );
+                        return new FollowUpTask.Batch(
+                            // the ids placeholder is left as is, as it is only replaced once the batch is complete
+                            batchHref.expand(fieldValue, FollowUpTask.Batch.IDS),
+                            batchKey,
+                            id.asText(),
+                            dir.batchSize()
+                        );
+                    });
+                final FragmentDefinition fragment = dir.fragment()
+                    .orElseThrow( () -> new IllegalArgumentException("missing fragment " + fragmentName ) );
                 followUpTasks.add(new FollowUpTask(
-                    new RootOperation(
-                        fragment.getTypeCondition().getName(),
-                        fragment.getSelectionSet(),
-                        fragment.getDirectives()
-                    ),
+                    QueryPlan.RootOperation.of(fragment),
                     fieldValue,
-                    document,
-                    uri
+                    plan,
+                    uri,
+                    batch,
+                    dir.priority()
                 ));
             });
     }
 
-    private Optional<String> findDirectiveArgumentValue(Directive directive, String argumentName) {
-        return Optional.ofNullable(directive.getArgument(argumentName))
-            .map( arg -> ((StringValue) arg.getValue()).getValue() );
-    }
-
     private void processArrayElements(
             JsonNode arrayNode,
             Field field,
-            Document document,
+            QueryPlan plan,
             ArrayNode targetNode,
             List<FollowUpTask> followUpTasks
     ) {
 
-        for (JsonNode element : arrayNode) {
+        parallelArrays.process((ArrayNode) arrayNode, targetNode, followUpTasks, (element, elementFollowUpTasks) -> {
             if (element.isObject()) {
-                targetNode.add( processObjectField(
-                        field, document, followUpTasks, field.getName(), (ObjectNode)element)
-                );
+                return processObjectField(
+                        field, plan, elementFollowUpTasks, field.getName(), (ObjectNode)element);
             } else if (element.isArray()) {
                 ArrayNode filteredArrayNode = objectMapper.createArrayNode();
                 processArrayElements(
-                        element, field, document, filteredArrayNode, followUpTasks
+                        element, field, plan, filteredArrayNode, elementFollowUpTasks
                 );
-                targetNode.add(filteredArrayNode);
+                return filteredArrayNode;
             } else {
-                targetNode.add(element.deepCopy());
+                return element.deepCopy();
             }
-        }
+        });
     }
 
     public static class Result {
@@ -332,11 +282,32 @@ public class ProxyQueryProcessor {
         }
     }
 
+    /**
+     * @param url the URL of the resource of the task; may only be missing for batched tasks
+     * @param batch how the task can be batched with other tasks, if the directive declares a batch href
+     * @param priority the priority of the task, if the follow-ups are ordered by priority
+     */
     public record FollowUpTask (
-        RootOperation rootOperation,
+        QueryPlan.RootOperation rootOperation,
         JsonNode sourceNode,
-        Document document,
-        String url
+        QueryPlan plan,
+        @Nullable String url,
+        Optional<Batch> batch,
+        int priority
     ){
+        /**
+         * @param href the URL template of the batch request, with all placeholders but {@code ${ids}} expanded
+         * @param key the attribute that identifies the object in the batch request and response
+         * @param id the value of the key attribute of the object
+         */
+        public record Batch (
+            HrefTemplate href,
+            String key,
+            String id,
+            Optional<Integer> maxSize
+        ){
+            public static final String IDS = "ids";
+            public static final String DEFAULT_KEY = "id";
+        }
     }
 }
@@ -19,14 +19,21 @@
 
 package org.meshcaline.proxy.service;
 
+import org.meshcaline.proxy.configuration.model.ProxyConfiguration;
 import org.meshcaline.proxy.configuration.service.ConfigurationService;
 import org.meshcaline.proxy.multipart.DefaultPartEvents;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.buffer.*;
 import org.springframework.http.*;
@@ -35,20 +42,30 @@ import org.springframework.http.codec.multipart.MultipartWriterSupport;
 import org.springframework.http.codec.multipart.PartEvent;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import jakarta.validation.constraints.NotNull;
 
@@ -58,24 +75,133 @@ public class ProxyService {
     private final static ObjectMapper objectMapper = new ObjectMapper();
     private static final Logger log = LoggerFactory.getLogger(ProxyService.class);
 
+    // the tree engine holds the full response in memory, hence we keep its size limited; the streaming
+    // engines only hold the filtered response
+    private static final int MAX_IN_MEMORY_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The engine used for applying filter queries on the responses of the proxied service.
+     */
+    public enum ProcessingEngine {
+        /** parses the full response into a JSON tree, see {@link ProxyQueryProcessor} */
+        TREE,
+        /** filters the token stream of the response, see {@link StreamingQueryProcessor} */
+        STREAMING,
+        /**
+         * filters the token stream of the response while it arrives, so that the elements of a top level
+         * array are emitted, and their follow-up requests are started, before the full response is received
+         */
+        INCREMENTAL
+    }
+
+    /**
+     * The order in which the parts of follow-up tasks are emitted. Clients select it with the {@code X-MESHCALINE-ORDER}
+     * header, the {@code _meshcaline_order} parameter, or an {@code @ORDER(mode: ...)} directive on the query operation.
+     */
+    public enum FollowUpOrder {
+        /** emits the parts as soon as they are available */
+        FASTEST,
+        /** emits the parts in the order of their tasks in the source document, see {@link OrderedMerge} */
+        SOURCE,
+        /**
+         * requests the tasks with a higher {@code priority} argument of their {@code @GET} directive first, and emits
+         * their parts first; parts of the same priority are emitted as soon as they are available. As the tasks have
+         * to be sorted, they are only started once all tasks of the source document are known.
+         */
+        PRIORITY
+    }
+
+    private static final String FOLLOW_UP_ORDER_ATTRIBUTE = FollowUpOrder.class.getName();
+    private static final String DEADLINE_HEADER = "X-MESHCALINE-DEADLINE";
+    private static final String SKIPPED_HEADER = "X-MESHCALINE-SKIPPED";
+    private static final String PRUNED_HEADER = "X-MESHCALINE-PRUNED";
+    private static final String COST_HEADER = "X-MESHCALINE-COST";
+    private static final String COST_ESTIMATE_HEADER = "X-MESHCALINE-COST-ESTIMATE";
+    private static final String COST_ESTIMATE_ATTRIBUTE = QueryCostAnalyzer.class.getName();
+
     private final ConfigurationService configurationService;
     private final WebClient webClient;
     private final ProxyQueryProcessor proxyQueryProcessor;
+    private final StreamingQueryProcessor streamingQueryProcessor;
+    private final ProcessingEngine processingEngine;
+    private final UpstreamSingleFlight upstreamSingleFlight;
+    private final ResponseCache responseCache;
+    private final FollowUpLimits followUpLimits;
+    private final RequestHedging requestHedging;
+    private final QueryPlanCache queryPlanCache;
+    private final QueryCostAnalyzer queryCostAnalyzer;
+    private final QueryAdmission queryAdmission;
+    private final PersistedQueries persistedQueries;
+    private final ProcessingScheduler processingScheduler;
+    private final int defaultBatchSize;
+    private final Duration batchWindow;
+    private final FollowUpOrder defaultFollowUpOrder;
+    private final int orderingWindow;
+    private final long maxReorderBufferSize;
+    private final FanOutGovernor.Limits fanOutLimits;
+    private final DistributionSummary deduplicatedFollowUps;
+    private final Counter skippedFollowUps;
+    private final Map<FanOutGovernor.Reason, Counter> prunedFollowUps = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
     private final DataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
 
     public ProxyService(
             ConfigurationService configurationService,
             WebClient.Builder webClientBuilder,
-            ProxyQueryProcessor proxyQueryProcessor
+            ProxyQueryProcessor proxyQueryProcessor,
+            StreamingQueryProcessor streamingQueryProcessor,
+            @Value("${proxy.query.engine:tree}") ProcessingEngine processingEngine,
+            UpstreamSingleFlight upstreamSingleFlight,
+            ResponseCache responseCache,
+            FollowUpLimits followUpLimits,
+            RequestHedging requestHedging,
+            QueryPlanCache queryPlanCache,
+            QueryCostAnalyzer queryCostAnalyzer,
+            QueryAdmission queryAdmission,
+            PersistedQueries persistedQueries,
+            ProcessingScheduler processingScheduler,
+            @Value("${proxy.followups.batch.maximum-size:50}") int defaultBatchSize,
+            @Value("${proxy.followups.batch.window:5ms}") Duration batchWindow,
+            @Value("${proxy.followups.ordering.mode:fastest}") FollowUpOrder defaultFollowUpOrder,
+            @Value("${proxy.followups.ordering.window:32}") int orderingWindow,
+            @Value("${proxy.followups.ordering.max-buffered-size:4MB}") DataSize maxReorderBufferSize,
+            @Value("${proxy.followups.governor.max-depth:5}") int maxFollowUpDepth,
+            @Value("${proxy.followups.governor.max-follow-ups:1000}") int maxFollowUps,
+            @Value("${proxy.followups.governor.max-bytes:64MB}") DataSize maxFollowUpBytes,
+            MeterRegistry meterRegistry
     ) {
         this.configurationService = configurationService;
         //this.webClient = webClientBuilder.build();
         this.proxyQueryProcessor = proxyQueryProcessor;
+        this.streamingQueryProcessor = streamingQueryProcessor;
+        this.processingEngine = processingEngine;
+        this.upstreamSingleFlight = upstreamSingleFlight;
+        this.responseCache = responseCache;
+        this.followUpLimits = followUpLimits;
+        this.requestHedging = requestHedging;
+        this.queryPlanCache = queryPlanCache;
+        this.queryCostAnalyzer = queryCostAnalyzer;
+        this.queryAdmission = queryAdmission;
+        this.persistedQueries = persistedQueries;
+        this.processingScheduler = processingScheduler;
+        this.defaultBatchSize = defaultBatchSize;
+        this.batchWindow = batchWindow;
+        this.defaultFollowUpOrder = defaultFollowUpOrder;
+        this.orderingWindow = orderingWindow;
+        this.maxReorderBufferSize = maxReorderBufferSize.toBytes();
+        this.fanOutLimits = new FanOutGovernor.Limits(maxFollowUpDepth, maxFollowUps, maxFollowUpBytes.toBytes());
+        this.deduplicatedFollowUps = DistributionSummary.builder("proxy.followups.deduplicated")
+            .description("Follow-up requests per ingress request that were served by an identical follow-up of the same request")
+            .register(meterRegistry);
+        this.meterRegistry = meterRegistry;
+        this.skippedFollowUps = Counter.builder("proxy.followups.skipped")
+            .description("Follow-up requests that were skipped, because the deadline of their ingress request expired")
+            .register(meterRegistry);
         // Create ExchangeStrategies with default codecs
         final ExchangeStrategies strategies = ExchangeStrategies.builder()
             .codecs(configurer -> {
                 ClientCodecConfigurer.ClientDefaultCodecs codecs = configurer.defaultCodecs();
-                codecs.maxInMemorySize(16 * 1024 * 1024);  // Increase buffer size if needed
+                codecs.maxInMemorySize(MAX_IN_MEMORY_SIZE);  // Increase buffer size if needed
             })
             .build();
 
@@ -86,28 +212,83 @@ public class ProxyService {
 
     public Flux<DataBuffer> handleRequest( @NotNull ServerWebExchange exchange) {
         URI ingressURI = exchange.getRequest().getURI();
-        URI egressURI = this.configurationService
-            .findEgressURI(ingressURI)
+        ConfigurationService.Route route = this.configurationService
+            .findRoute(ingressURI)
             .orElseThrow( () -> new RuntimeException("No matching configuration found for: "+ingressURI) );
+        URI egressURI = route.egressURI();
+        FollowUpDeadline.start(exchange, followUpTimeout(exchange, route.mapping().options()));
+        FanOutGovernor.start(exchange, fanOutLimits);
 
         // Set the Forwarded header for the downstream request
         // TODO : Doesn't work due to ForwardedFilter
         // HTTPUtils.setForwardedHeader(exchange, exchange.getRequest().getHeaders());
 
         // Try to extract a filter query from the request
-        final QueryExtractor extractor = new QueryExtractor(exchange);
         final ServerHttpRequest proxiedRequest = exchange.getRequest();
         final ServerHttpResponse proxyResponse = exchange.getResponse();
+        final QueryExtractor extractor;
+        try {
+            extractor = new QueryExtractor(exchange, persistedQueries);
+        } catch (PersistedQueries.PersistedQueryNotFoundException e) {
+            // the error handler doesn't apply the headers of the exception
+            proxyResponse.getHeaders().addAll(e.getHeaders());
+            throw e;
+        }
+        if (extractor.hasQuery()) {
+            // reject an unknown order before anything is sent to the proxied service
+            exchange.getAttributes().put(FOLLOW_UP_ORDER_ATTRIBUTE, resolveFollowUpOrder(exchange, extractor));
+        }
 
-        final WebClient.ResponseSpec proxiedResponse = proxyRequest(
+        final Mono<ResponseEntity<Flux<DataBuffer>>> proxiedResponse = proxyRequest(
             proxiedRequest.getMethod(),
             egressURI,
             prepareProxyRequestHeaders(proxiedRequest.getHeaders(),egressURI),
-            Optional.empty()//.ofNullable(extractor.getBody())
+            Optional.empty(),//.ofNullable(extractor.getBody())
+            Optional.of(route.mapping()),
+            false
         );
-        return extractor.hasQuery()
-            ? respondProcessedResponse(proxiedResponse, exchange, egressURI, extractor)
-            : respondPlainResponse(proxiedResponse, proxyResponse);
+        if (!extractor.hasQuery()) {
+            return respondPlainResponse(proxiedResponse, proxyResponse);
+        }
+        // the proxied request is only sent once the query has been admitted
+        final long estimatedCost = queryCostAnalyzer.estimate(queryPlanCache.get(extractor.getQuery()));
+        exchange.getAttributes().put(COST_ESTIMATE_ATTRIBUTE, estimatedCost);
+        return queryAdmission.admit(exchange, estimatedCost)
+            .flatMapMany( ticket -> respondProcessedResponse(proxiedResponse, exchange, egressURI, extractor)
+                .doFinally( signal -> ticket.release() )
+            );
+    }
+
+    /**
+     * Sets the header with the estimated cost of the query, and the header with its actual cost, if that is
+     * already known. The actual cost of a multipart response is only known at its end, see
+     * {@link #createFollowUpReportPartEvent(ServerWebExchange)}.
+     */
+    private static void setCostHeaders(ServerWebExchange exchange, OptionalLong actualCost) {
+        final Long estimatedCost = exchange.getAttribute(COST_ESTIMATE_ATTRIBUTE);
+        if (estimatedCost != null) {
+            exchange.getResponse().getHeaders().set(COST_ESTIMATE_HEADER, String.valueOf(estimatedCost));
+        }
+        actualCost.ifPresent( cost -> exchange.getResponse().getHeaders().set(COST_HEADER, String.valueOf(cost)) );
+    }
+
+    /**
+     * @return the time the follow-ups of the request may take, requested by the client and limited by the mapping
+     */
+    private static Optional<Duration> followUpTimeout(ServerWebExchange exchange, ProxyConfiguration.Mapping.Options options) {
+        return Stream.of(
+                Optional.ofNullable(exchange.getRequest().getHeaders().getFirst(DEADLINE_HEADER))
+                    .map( value -> {
+                        try {
+                            return DurationStyle.detectAndParse(value.trim());
+                        } catch (IllegalArgumentException e) {
+                            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid follow-up deadline " + value, e);
+                        }
+                    }),
+                Optional.ofNullable(options.followUpDeadline())
+            )
+            .flatMap(Optional::stream)
+            .min(Comparator.naturalOrder());
     }
 
     private HttpHeaders prepareProxyRequestHeaders(HttpHeaders proxiedRequestHeaders, URI egressURI){
@@ -118,7 +299,42 @@ public class ProxyService {
         return response;
     }
 
-    private WebClient.ResponseSpec proxyRequest(
+    /**
+     * Prepares the request to the proxied service. Status, headers and the streamed body are all
+     * taken from the same exchange. If the mapping enables caching, GET requests are served from
+     * the {@link ResponseCache} when possible, and stale cached responses are revalidated. Follow-up requests of safe methods may be
+     * coalesced with identical requests in flight, see {@link UpstreamSingleFlight}, and may be hedged, see {@link RequestHedging}.
+     * @param mapping the mapping of the target URI, if there is one
+     * @param followUp whether the request is a follow-up request
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> proxyRequest(
+            @NotNull HttpMethod method,
+            @NotNull URI targetUri,
+            @NotNull HttpHeaders headers,
+            @NotNull Optional<Flux<DataBuffer>> body,
+            @NotNull Optional<ProxyConfiguration.Mapping> mapping,
+            boolean followUp
+    ) {
+        final Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>> exchange = mapping
+            .filter( m -> followUp && requestHedging.appliesTo(m, method, body.isPresent()) )
+            .<Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>>>map( m -> requestHeaders ->
+                requestHedging.execute(m, () -> exchange(method, targetUri, requestHeaders, body))
+            )
+            .orElse( requestHeaders -> exchange(method, targetUri, requestHeaders, body) );
+        // the cache may add conditional headers for revalidating a stale response
+        final Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>> fetch = requestHeaders ->
+            upstreamSingleFlight.appliesTo(method, body.isPresent(), followUp)
+                ? upstreamSingleFlight.execute(method, targetUri, requestHeaders, () -> exchange.apply(requestHeaders))
+                : exchange.apply(requestHeaders);
+        final ProxyConfiguration.Mapping.Options options = mapping
+            .map(ProxyConfiguration.Mapping::options)
+            .orElse(ProxyConfiguration.Mapping.Options.DEFAULT);
+        return options.cache() && responseCache.appliesTo(method, body.isPresent())
+            ? responseCache.execute(targetUri, headers, fetch)
+            : fetch.apply(headers);
+    }
+
+    private Mono<ResponseEntity<Flux<DataBuffer>>> exchange(
             @NotNull HttpMethod method,
             @NotNull URI targetUri,
             @NotNull HttpHeaders headers,
@@ -140,45 +356,123 @@ public class ProxyService {
                     .flatMap(errorBody ->
                         Mono.error(new RuntimeException("Error from proxied service: " + errorBody))
                     )
-            );
+            )
+            .toEntityFlux(DataBuffer.class);
         //TODO: Add handling of redirect responses
     }
 
     private Flux<DataBuffer> respondPlainResponse(
-            @NotNull WebClient.ResponseSpec proxiedResponse,
+            @NotNull Mono<ResponseEntity<Flux<DataBuffer>>> proxiedResponse,
             @NotNull ServerHttpResponse proxyResponse
     ) {
-         return proxiedResponse.toBodilessEntity()
+        return proxiedResponse
             .flatMapMany(response -> {
                 proxyResponse.setStatusCode(response.getStatusCode());
                 proxyResponse.getHeaders().clear();
                 proxyResponse.getHeaders().addAll(response.getHeaders());
-                return proxiedResponse
-                    .bodyToFlux(DataBuffer.class);
+                return Optional.ofNullable(response.getBody()).orElse(Flux.empty());
             });
     }
 
     private Flux<DataBuffer> respondProcessedResponse(
-        @NotNull WebClient.ResponseSpec proxiedResponse,
+        @NotNull Mono<ResponseEntity<Flux<DataBuffer>>> proxiedResponse,
         @NotNull ServerWebExchange exchange,
         @NotNull URI proxiedResponseUri,
         @NotNull QueryExtractor extractor
     ) {
-        return proxiedResponse.toBodilessEntity()
+        final DataBufferFactory bufferFactory = exchange.getResponse().bufferFactory();
+        return proxiedResponse
             .flatMapMany( responseEntity -> {
                 exchange.getResponse().setStatusCode(responseEntity.getStatusCode());
-                return proxiedResponse.bodyToMono(String.class)
-                    .flatMapMany( body ->{
+                if (processingEngine == ProcessingEngine.INCREMENTAL) {
+                    final Flux<StreamingQueryProcessor.Result> chunks = streamingQueryProcessor.processIncrementally(
+                        Optional.ofNullable(responseEntity.getBody()).orElse(Flux.empty()),
+                        bufferFactory,
+                        extractor.getQuery(),
+                        extractor.getVariables()
+                    );
+                    // we can't wait for the full body to find out whether there are follow-up tasks
+                    return streamingQueryProcessor.mayCreateFollowUpTasks(extractor.getQuery())
+                        ? respondChunksAsMultipartDataBuffer(exchange, chunks, responseEntity.getHeaders(), proxiedResponseUri)
+                        : respondSingleChunkedResult(exchange, chunks, responseEntity.getHeaders());
+                }
+                return processBody(
+                        responseEntity.getBody(),
+                        body -> ProcessedBody.of(proxyQueryProcessor.process(parseJson(body), extractor.getQuery(), extractor.getVariables()), bufferFactory),
+                        body -> streamingQueryProcessor.processIncrementally(body, bufferFactory, extractor.getQuery(), extractor.getVariables())
+                    )
+                    .flatMapMany( processingResult ->{
                         final HttpHeaders proxiedResponseHeaders = responseEntity.getHeaders();
-                        final ProxyQueryProcessor.Result processingResult = proxyQueryProcessor
-                            .process(parseJson(body), extractor.getQuery());
-                        return processingResult.getFollowUpTasks().isEmpty()
-                            ? respondSingleResult(exchange.getResponse(),processingResult,proxiedResponseHeaders)
+                        return processingResult.followUpTasks().isEmpty()
+                            ? respondSingleResult(exchange, processingResult, proxiedResponseHeaders)
                             : respondResultAsMultipartDataBuffer(exchange, proxyQueryProcessor, processingResult, proxiedResponseHeaders, proxiedResponseUri);
                     });
             });
     }
 
+    private FollowUpOrder resolveFollowUpOrder(ServerWebExchange exchange, QueryExtractor extractor) {
+        return Optional.ofNullable(exchange.getRequest().getQueryParams().getFirst("_meshcaline_order"))
+            .or( () -> Optional.ofNullable(exchange.getRequest().getHeaders().getFirst("X-MESHCALINE-ORDER")) )
+            .or( () -> queryPlanCache.get(extractor.getQuery()).bind(extractor.getVariables()).followUpOrder() )
+            .map( mode -> {
+                try {
+                    return FollowUpOrder.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown follow-up order " + mode, e);
+                }
+            })
+            .orElse(defaultFollowUpOrder);
+    }
+
+    /**
+     * The filtered body of a response of the proxied service.
+     */
+    private record ProcessedBody (
+        DataBuffer content,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ){
+        static ProcessedBody of(ProxyQueryProcessor.Result result, DataBufferFactory bufferFactory) {
+            return new ProcessedBody(writeJsonTreeToDataBuffer(result.getTargetNode(), bufferFactory), result.getFollowUpTasks());
+        }
+
+    }
+
+    /**
+     * Applies the processing of the configured engine on the body of a response of the proxied service. The tree
+     * processing runs on the {@link ProcessingScheduler}; the streaming processing filters the body while it
+     * arrives, so it is never held in memory as a whole. Results in an empty Mono, if the response doesn't have a body.
+     */
+    private Mono<ProcessedBody> processBody(
+        @Nullable Flux<DataBuffer> body,
+        @NotNull Function<String, ProcessedBody> treeProcessing,
+        @NotNull Function<Flux<DataBuffer>, Flux<StreamingQueryProcessor.Result>> streamingProcessing
+    ) {
+        if (body == null) return Mono.empty();
+        if (processingEngine == ProcessingEngine.TREE) {
+            return DataBufferUtils.join(body, MAX_IN_MEMORY_SIZE)
+                .flatMap( buffer -> processingScheduler.process(
+                    buffer.readableByteCount(),
+                    () -> {
+                        final String content = buffer.toString(StandardCharsets.UTF_8);
+                        DataBufferUtils.release(buffer);
+                        return treeProcessing.apply(content);
+                    },
+                    () -> DataBufferUtils.release(buffer)
+                ));
+        }
+        return Mono.defer( () -> {
+            final List<ProxyQueryProcessor.FollowUpTask> followUpTasks = new ArrayList<>();
+            // only the filtered content is joined
+            return DataBufferUtils.join(
+                    streamingProcessing.apply(body)
+                        .doOnNext( result -> followUpTasks.addAll(result.followUpTasks()) )
+                        .map(StreamingQueryProcessor.Result::content),
+                    MAX_IN_MEMORY_SIZE
+                )
+                .map( content -> new ProcessedBody(content, followUpTasks) );
+        });
+    }
+
     private JsonNode parseJson(final String responseBody) {
         try {
             return objectMapper.readTree(responseBody);
@@ -187,43 +481,197 @@ public class ProxyService {
         }
     }
     private Flux<DataBuffer> respondSingleResult(
-            @NotNull ServerHttpResponse proxyResponse,
-            @NotNull ProxyQueryProcessor.Result result,
+            @NotNull ServerWebExchange exchange,
+            @NotNull ProcessedBody result,
             @NotNull HttpHeaders proxiedResponseHeaders
 
     ) {
+        final ServerHttpResponse proxyResponse = exchange.getResponse();
+        proxyResponse.getHeaders().clear();
+        proxyResponse.getHeaders().addAll(proxiedResponseHeaders);
+        // the length of the filtered body differs from the proxied one
+        proxyResponse.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+        // without follow-ups, the ingress request is the only one
+        setCostHeaders(exchange, OptionalLong.of(1));
+        return Flux.just(result.content());
+    }
+
+    private Flux<DataBuffer> respondSingleChunkedResult(
+            @NotNull ServerWebExchange exchange,
+            @NotNull Flux<StreamingQueryProcessor.Result> chunks,
+            @NotNull HttpHeaders proxiedResponseHeaders
+    ) {
+        final ServerHttpResponse proxyResponse = exchange.getResponse();
         proxyResponse.getHeaders().clear();
         proxyResponse.getHeaders().addAll(proxiedResponseHeaders);
-        return Flux.just(writeJsonTreeToDataBuffer(result.getTargetNode(), proxyResponse.bufferFactory()));
+        // the length of the filtered body differs from the proxied one
+        proxyResponse.getHeaders().remove(HttpHeaders.CONTENT_LENGTH);
+        setCostHeaders(exchange, OptionalLong.of(1));
+        return chunks.map(StreamingQueryProcessor.Result::content);
+    }
+
+    private Flux<DataBuffer> respondChunksAsMultipartDataBuffer(
+            @NotNull ServerWebExchange exchange,
+            @NotNull Flux<StreamingQueryProcessor.Result> chunks,
+            @NotNull HttpHeaders proxiedResponseHeaders,
+            @NotNull URI proxiedResponseUri
+    ) {
+        final MultipartTransformer transformer = new MultipartTransformer();
+        exchange.getResponse().getHeaders().setContentType(transformer.constructContentType());
+        setCostHeaders(exchange, OptionalLong.empty());
+        final Flux<PartEvent> events = respondChunksAsMultipartEvents(
+                exchange, chunks, proxiedResponseHeaders, proxiedResponseUri, FanOutGovernor.Path.root(proxiedResponseUri), true
+            )
+            .concatWith(createFollowUpReportPartEvent(exchange));
+        return transformer.transformToDataBuffer(exchange.getResponse().bufferFactory(), events)
+            .doFinally( signal -> finishFollowUps(exchange) );
+    }
+
+    /**
+     * Creates the part for incrementally processed chunks, followed by the parts of the follow-up tasks of the chunks.
+     * The follow-up tasks are started as soon as their chunk arrives, but as parts can't be interleaved,
+     * their events are only emitted after the part of the chunks is complete.
+     * @param streamPart whether the part of the chunks is emitted chunk by chunk, or as one event once
+     *                   all chunks are available. Only the outermost part may be streamed, as the parts
+     *                   of concurrent follow-up tasks are interleaved.
+     * @param path the ancestry of the follow-up tasks of the chunks
+     */
+    private Flux<PartEvent> respondChunksAsMultipartEvents(
+            @NotNull ServerWebExchange exchange,
+            @NotNull Flux<StreamingQueryProcessor.Result> chunks,
+            @NotNull HttpHeaders proxiedResponseHeaders,
+            @NotNull URI proxiedResponseUri,
+            @NotNull FanOutGovernor.Path path,
+            boolean streamPart
+    ) {
+        final Flux<StreamingQueryProcessor.Result> sharedChunks = chunks.publish().refCount(2);
+        final Flux<PartEvent> part = streamPart
+            ? sharedChunks
+                .map( chunk -> createPartEvent(proxiedResponseHeaders, chunk.content(), false) )
+                .concatWith(Mono.fromSupplier( () -> DefaultPartEvents.create(createPartHeaders(proxiedResponseHeaders)) ))
+            : DataBufferUtils.join(sharedChunks.map(StreamingQueryProcessor.Result::content))
+                .map( content -> createPartEvent(proxiedResponseHeaders, content) )
+                .flux();
+        final Flux<PartEvent> followUps = createFollowUpTasksMultipartEvents(
+                exchange,
+                proxyQueryProcessor,
+                sharedChunks.concatMapIterable( chunk -> {
+                    FollowUpDeadline.of(exchange).register(chunk.followUpTasks());
+                    return chunk.followUpTasks();
+                }),
+                proxiedResponseUri,
+                path
+            )
+            // keep the follow-ups going while the part is still emitted
+            .onBackpressureBuffer();
+        return Flux.mergeSequential(part, followUps);
     }
 
     private Flux<DataBuffer> respondResultAsMultipartDataBuffer(
             @NotNull ServerWebExchange exchange,
             @NotNull ProxyQueryProcessor processor,
-            @NotNull ProxyQueryProcessor.Result result,
+            @NotNull ProcessedBody result,
             @NotNull HttpHeaders proxiedResponseHeaders,
             @NotNull URI proxiedResponseUri
     ) {
         final MultipartTransformer transformer = new MultipartTransformer();
         exchange.getResponse().getHeaders().setContentType(transformer.constructContentType());
-        final Flux<PartEvent> events = respondResultAsMultipartEvents(exchange, processor, result, proxiedResponseHeaders, proxiedResponseUri);
+        setCostHeaders(exchange, OptionalLong.empty());
+        final Flux<PartEvent> events = respondResultAsMultipartEvents(
+                exchange, processor, result, proxiedResponseHeaders, proxiedResponseUri, FanOutGovernor.Path.root(proxiedResponseUri)
+            )
+            .concatWith(createFollowUpReportPartEvent(exchange));
         return transformer.transformToDataBuffer(exchange.getResponse().bufferFactory(), events)
+            .doFinally( signal -> finishFollowUps(exchange) )
     //        .doOnNext( buffer -> exchange.getResponse().writeWith(Mono.just(buffer)))
         ;
     }
 
+    /**
+     * Cancels the follow-ups that are still in progress (e.g. if the client disconnected), releases their
+     * concurrency permits, and records their statistics.
+     */
+    private void finishFollowUps(ServerWebExchange exchange) {
+        final FollowUpDeduplicator deduplicator = FollowUpDeduplicator.of(exchange);
+        deduplicator.cancel();
+        followUpLimits.releaseAll(exchange);
+        final int savedCalls = deduplicator.savedCalls();
+        deduplicatedFollowUps.record(savedCalls);
+        log.debug("Saved {} follow-up requests for {}", savedCalls, exchange.getRequest().getURI());
+    }
+
+    /**
+     * Creates the final part with the estimated and the actual cost of the query (header {@code X-MESHCALINE-COST}),
+     * and the lists of the follow-up tasks that have been skipped, because the deadline of the request expired,
+     * and of the tasks that have been pruned by the {@link FanOutGovernor}.
+     */
+    private Mono<PartEvent> createFollowUpReportPartEvent(ServerWebExchange exchange) {
+        return Mono.fromSupplier( () -> {
+                final List<ProxyQueryProcessor.FollowUpTask> skipped = FollowUpDeadline.of(exchange).skipped();
+                final FanOutGovernor governor = FanOutGovernor.of(exchange);
+                final List<FanOutGovernor.Pruned> pruned = governor.pruned();
+                final ObjectNode content = objectMapper.createObjectNode();
+                final HttpHeaders headers = new HttpHeaders();
+                headers.setContentType(MediaType.APPLICATION_JSON);
+                final long actualCost = 1L + governor.requests();
+                final ObjectNode cost = content.putObject("cost");
+                Optional.ofNullable(exchange.<Long>getAttribute(COST_ESTIMATE_ATTRIBUTE))
+                    .ifPresent( estimatedCost -> cost.put("estimated", estimatedCost) );
+                cost.put("actual", actualCost);
+                headers.set(COST_HEADER, String.valueOf(actualCost));
+                if (!skipped.isEmpty()) {
+                    skippedFollowUps.increment(skipped.size());
+                    log.debug("Skipped {} follow-up requests for {}", skipped.size(), exchange.getRequest().getURI());
+                    final ArrayNode tasks = content.putArray("skipped");
+                    skipped.forEach( task -> describeFollowUpTask(task, tasks.addObject()) );
+                    headers.set(SKIPPED_HEADER, String.valueOf(skipped.size()));
+                }
+                if (!pruned.isEmpty()) {
+                    log.debug("Pruned {} follow-up requests for {}", pruned.size(), exchange.getRequest().getURI());
+                    final ArrayNode tasks = content.putArray("pruned");
+                    for (FanOutGovernor.Pruned task : pruned) {
+                        prunedFollowUps.computeIfAbsent(task.reason(), reason -> Counter.builder("proxy.followups.pruned")
+                                .description("Follow-up requests that were pruned by the fan-out limits of their ingress request")
+                                .tag("reason", reason.toString())
+                                .register(meterRegistry)
+                            )
+                            .increment();
+                        describeFollowUpTask(task.task(), tasks.addObject()).put("reason", task.reason().toString());
+                    }
+                    headers.set(PRUNED_HEADER, String.valueOf(pruned.size()));
+                }
+                return DefaultPartEvents.create(
+                    headers, writeJsonTreeToDataBuffer(content, exchange.getResponse().bufferFactory()), true
+                );
+            });
+    }
+
+    private static ObjectNode describeFollowUpTask(ProxyQueryProcessor.FollowUpTask task, ObjectNode node) {
+        node.put("fragment", task.rootOperation().name());
+        if (task.url() != null) {
+            node.put("url", task.url());
+        }
+        task.batch().ifPresent( batch -> node.put("batchHref", batch.href().toString()).put("id", batch.id()) );
+        return node;
+    }
+
+    /**
+     * Creates the part of a filtered body, followed by the parts of its follow-up tasks.
+     * @param path the ancestry of the follow-up tasks of the body
+     */
     private Flux<PartEvent> respondResultAsMultipartEvents(
             @NotNull ServerWebExchange exchange,
             @NotNull ProxyQueryProcessor processor,
-            @NotNull ProxyQueryProcessor.Result result,
+            @NotNull ProcessedBody result,
             @NotNull HttpHeaders proxiedResponseHeaders,
-            @NotNull URI proxiedResponseUri
+            @NotNull URI proxiedResponseUri,
+            @NotNull FanOutGovernor.Path path
     ) {
-        return Flux.just(writeJsonTreeToDataBuffer(result.getTargetNode(), exchange.getResponse().bufferFactory()))
+        FollowUpDeadline.of(exchange).register(result.followUpTasks());
+        return Flux.just(result.content())
             .map( content -> createPartEvent(proxiedResponseHeaders,content) )
             .concatWith(
-                Flux.fromIterable(result.getFollowUpTasks())
-                    .flatMap( task -> createFollowUpTaskMultipartEvents(exchange, processor, task, proxiedResponseUri) )
+                createFollowUpTasksMultipartEvents(exchange, processor, Flux.fromIterable(result.followUpTasks()), proxiedResponseUri, path)
 //                    .delayElements(Duration.ofSeconds(5))
 
             )
@@ -277,43 +725,311 @@ public class ProxyService {
         }
     }
 
-    private Flux<PartEvent> createFollowUpTaskMultipartEvents(
+    /**
+     * Tasks that can be fetched with the same batch request.
+     */
+    private record BatchKey (
+        HrefTemplate href,
+        QueryPlan.RootOperation rootOperation,
+        int maxSize
+    ){
+    }
+
+    /**
+     * A follow-up task that has been admitted by the {@link FanOutGovernor}, with the target of its URL (or, if it
+     * has none, of its batch URL for its own id), and its ancestry. Batchable tasks receive the response of their batch once it has been fetched. An empty
+     * batch response means that the task is fetched individually.
+     */
+    private record PendingFollowUp (
+        ProxyQueryProcessor.FollowUpTask task,
+        FollowUpTarget target,
+        FanOutGovernor.Path path,
+        @Nullable Sinks.One<Optional<BatchResponse>> batchResponse
+    ){
+    }
+
+    /**
+     * The elements of the response of a batch request by the value of their batch key.
+     */
+    private record BatchResponse (
+        Map<String, JsonNode> elements,
+        HttpHeaders headers
+    ){
+    }
+
+    /**
+     * Creates the parts of the follow-up tasks, in the order of the {@link FollowUpOrder} of the ingress request.
+     * Batchable tasks are collected until their batch is full, or for the batch window at most, and fetched with
+     * one request per batch; all other tasks are fetched individually. Tasks that aren't admitted by the
+     * {@link FanOutGovernor} are dropped.
+     * @param parent the ancestry of the tasks
+     */
+    private Flux<PartEvent> createFollowUpTasksMultipartEvents(
             @NotNull ServerWebExchange exchange,
             @NotNull ProxyQueryProcessor processor,
-            @NotNull ProxyQueryProcessor.FollowUpTask task,
+            @NotNull Flux<ProxyQueryProcessor.FollowUpTask> tasks,
+            @NotNull URI proxiedResponseUri,
+            @NotNull FanOutGovernor.Path parent
+    ) {
+        final FanOutGovernor governor = FanOutGovernor.of(exchange);
+        final FollowUpDeadline deadline = FollowUpDeadline.of(exchange);
+        final Flux<PendingFollowUp> pending = tasks
+            .mapNotNull( task -> {
+                final FollowUpTarget target = resolveFollowUpTarget(exchange, followUpUrl(task));
+                final FanOutGovernor.Path path = parent.child(target.uri(), task.rootOperation().name());
+                if (governor.admit(task, path, isSelfReference(exchange, target)).isPresent()) {
+                    deadline.completed(task);
+                    return null;
+                }
+                return new PendingFollowUp(task, target, path, task.batch().isPresent() ? Sinks.one() : null);
+            })
+            .publish()
+            .refCount(2);
+        final Flux<PartEvent> batches = pending
+            .filter( followUp -> followUp.batchResponse() != null )
+            .groupBy( followUp -> {
+                final ProxyQueryProcessor.FollowUpTask task = followUp.task();
+                final ProxyQueryProcessor.FollowUpTask.Batch batch = task.batch().orElseThrow();
+                return new BatchKey(batch.href(), task.rootOperation(), batch.maxSize().orElse(defaultBatchSize));
+            })
+            .flatMap( group -> group
+                .bufferTimeout(group.key().maxSize(), batchWindow)
+                .flatMap( batch -> fetchBatch(exchange, group.key(), batch) )
+            )
+            .thenMany(Flux.empty());
+        final Function<PendingFollowUp, Flux<PartEvent>> parts =
+            followUp -> createPendingFollowUpMultipartEvents(exchange, processor, followUp, proxiedResponseUri)
+                .doOnComplete( () -> deadline.completed(followUp.task()) );
+        final Flux<PartEvent> followUps = switch (exchange.getAttributeOrDefault(FOLLOW_UP_ORDER_ATTRIBUTE, defaultFollowUpOrder)) {
+            case FASTEST -> pending.flatMap(parts);
+            case SOURCE -> OrderedMerge.merge(pending, parts, orderingWindow, maxReorderBufferSize);
+            case PRIORITY -> OrderedMerge.merge(
+                pending.collectList().flatMapIterable(ProxyService::byPriority),
+                priorityClass -> Flux.fromIterable(priorityClass).flatMap(parts),
+                orderingWindow,
+                maxReorderBufferSize
+            );
+        };
+        return deadline.limit(Flux.merge(followUps, batches));
+    }
+
+    /**
+     * @return the URL of the task, or the batch URL for the id of the task if it has none
+     */
+    private static String followUpUrl(ProxyQueryProcessor.FollowUpTask task) {
+        if (task.url() != null) return task.url();
+        final ProxyQueryProcessor.FollowUpTask.Batch batch = task.batch().orElseThrow();
+        return batch.href().expand(ProxyQueryProcessor.FollowUpTask.Batch.IDS, List.of(batch.id()));
+    }
+
+    /**
+     * @return whether the target isn't mapped, and refers to the proxy itself; the proxy would call itself over and over
+     */
+    private static boolean isSelfReference(ServerWebExchange exchange, FollowUpTarget target) {
+        final URI ingressUri = exchange.getRequest().getURI();
+        return target.mapping().isEmpty()
+            && Objects.equals(target.uri().getHost(), ingressUri.getHost())
+            && port(target.uri()) == port(ingressUri);
+    }
+
+    private static int port(URI uri) {
+        if (uri.getPort() >= 0) return uri.getPort();
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * @return the follow-ups grouped by the priority of their tasks, highest priority first
+     */
+    private static Collection<List<PendingFollowUp>> byPriority(List<PendingFollowUp> followUps) {
+        final SortedMap<Integer, List<PendingFollowUp>> classes = new TreeMap<>(Comparator.reverseOrder());
+        for (PendingFollowUp followUp : followUps) {
+            classes.computeIfAbsent(followUp.task().priority(), priority -> new ArrayList<>()).add(followUp);
+        }
+        return classes.values();
+    }
+
+    private Flux<PartEvent> createPendingFollowUpMultipartEvents(
+            @NotNull ServerWebExchange exchange,
+            @NotNull ProxyQueryProcessor processor,
+            @NotNull PendingFollowUp followUp,
             @NotNull URI proxiedResponseUri
     ) {
+        final ProxyQueryProcessor.FollowUpTask task = followUp.task();
+        if (followUp.batchResponse() == null) {
+            return createFollowUpTaskMultipartEvents(exchange, task, followUp.target(), followUp.path(), proxiedResponseUri);
+        }
+        final DataBufferFactory bufferFactory = exchange.getResponse().bufferFactory();
+        return followUp.batchResponse().asMono()
+            .flatMapMany( response -> response
+                .map( batch -> Optional.ofNullable(batch.elements().get(task.batch().orElseThrow().id()))
+                    .map( element -> respondResultAsMultipartEvents(
+                        exchange,
+                        processor,
+                        ProcessedBody.of(proxyQueryProcessor.processFollowUpTask(element, task), bufferFactory),
+                        batch.headers(),
+                        proxiedResponseUri,
+                        followUp.path()
+                    ))
+                    // tasks without matching element are skipped
+                    .orElse(Flux.empty())
+                )
+                .orElseGet( () -> createFollowUpTaskMultipartEvents(exchange, task, followUp.target(), followUp.path(), proxiedResponseUri) )
+            );
+    }
+
+    /**
+     * Fetches the resources of a batch of follow-up tasks with one request, and passes the elements of the
+     * response on to the tasks.
+     */
+    private Mono<Void> fetchBatch(
+            @NotNull ServerWebExchange exchange,
+            @NotNull BatchKey batchKey,
+            @NotNull List<PendingFollowUp> batch
+    ) {
+        if (batch.size() == 1 && batch.get(0).task().url() != null) {
+            // the individual resource is more likely to be cached
+            batch.get(0).batchResponse().tryEmitValue(Optional.empty());
+            return Mono.empty();
+        }
+        final String batchKeyAttribute = batch.get(0).task().batch().orElseThrow().key();
+        final Set<String> ids = batch.stream()
+            .map( followUp -> followUp.task().batch().orElseThrow().id() )
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+        final FollowUpTarget target = resolveFollowUpTarget(
+            exchange,
+            batchKey.href().expand(ProxyQueryProcessor.FollowUpTask.Batch.IDS, ids)
+        );
+        return followUpLimits.execute(exchange, target.uri(), target.mapping(), () -> proxyRequest(
+                HttpMethod.GET,
+                target.uri(),
+                prepareProxyRequestHeaders(exchange.getRequest().getHeaders(),target.uri()),
+                Optional.empty(),
+                target.mapping(),
+                true
+            ))
+            .map(FanOutGovernor.of(exchange)::counted)
+            .flatMap( responseEntity -> DataBufferUtils.join(
+                    Optional.ofNullable(responseEntity.getBody()).orElse(Flux.empty()), MAX_IN_MEMORY_SIZE
+                )
+                .map( buffer -> {
+                    final String content = buffer.toString(StandardCharsets.UTF_8);
+                    DataBufferUtils.release(buffer);
+                    return new BatchResponse(
+                        elementsByKey(parseJson(content), batchKeyAttribute, target.uri()),
+                        responseEntity.getHeaders()
+                    );
+                })
+                .defaultIfEmpty(new BatchResponse(Map.of(), responseEntity.getHeaders()))
+            )
+            .doOnNext( response -> batch.forEach( followUp -> followUp.batchResponse().tryEmitValue(Optional.of(response)) ))
+            .doOnError( e -> batch.forEach( followUp -> followUp.batchResponse().tryEmitError(e) ))
+            // the error is reported by the parts of the tasks
+            .onErrorResume( e -> Mono.empty() )
+            .then();
+    }
+
+    private static Map<String, JsonNode> elementsByKey(JsonNode batchResponse, String key, URI uri) {
+        if (!batchResponse.isArray()) {
+            throw new RuntimeException("Response of batch request isn't an array: " + uri);
+        }
+        final Map<String, JsonNode> elements = new HashMap<>();
+        for (JsonNode element : batchResponse) {
+            Optional.ofNullable(element.get(key))
+                .ifPresent( id -> elements.putIfAbsent(id.asText(), element) );
+        }
+        return elements;
+    }
+
+    /**
+     * The proxied URI of a follow-up request, and its mapping if there is one.
+     */
+    private record FollowUpTarget (
+        URI uri,
+        Optional<ProxyConfiguration.Mapping> mapping
+    ){
+    }
+
+    private FollowUpTarget resolveFollowUpTarget(ServerWebExchange exchange, String url) {
         final URI uri;
         try {
-            uri = exchange.getRequest().getURI().resolve(task.url());
+            uri = exchange.getRequest().getURI().resolve(url);
         } catch (IllegalArgumentException e) {
-            throw new RuntimeException("Invalid relative URL "+task.url(), e);
+            throw new RuntimeException("Invalid relative URL "+url, e);
         }
-        final URI proxiedUri = this.configurationService
-                .findEgressURI(uri)
-                // if we don't have the URI configured, we try without transformation
-                // TODO: Avoid risk for infinite loop due to misconfiguration
-                .orElse(uri);
-        final WebClient.ResponseSpec proxiedResponse = proxyRequest(
-            HttpMethod.GET,
-            proxiedUri,
-            prepareProxyRequestHeaders(exchange.getRequest().getHeaders(),proxiedUri),
-            Optional.empty()
+        final Optional<ConfigurationService.Route> route = this.configurationService.findRoute(uri);
+        return new FollowUpTarget(
+            route
+                .map(ConfigurationService.Route::egressURI)
+                // if we don't have the URI configured, we try without transformation;
+                // the FanOutGovernor prunes URIs that refer to the proxy itself
+                .orElse(uri),
+            route.map(ConfigurationService.Route::mapping)
         );
+    }
+
+    private Flux<PartEvent> createFollowUpTaskMultipartEvents(
+            @NotNull ServerWebExchange exchange,
+            @NotNull ProxyQueryProcessor.FollowUpTask task,
+            @NotNull FollowUpTarget target,
+            @NotNull FanOutGovernor.Path path,
+            @NotNull URI proxiedResponseUri
+    ) {
+        // identical follow-ups of the same ingress request are only fetched once
+        return FollowUpDeduplicator.of(exchange).deduplicate(
+            new FollowUpDeduplicator.Key(target.uri(), task.rootOperation()),
+            exchange.getResponse().bufferFactory(),
+            () -> fetchFollowUpTaskMultipartEvents(exchange, task, target, path, proxiedResponseUri)
+        );
+    }
+
+    private Flux<PartEvent> fetchFollowUpTaskMultipartEvents(
+            @NotNull ServerWebExchange exchange,
+            @NotNull ProxyQueryProcessor.FollowUpTask task,
+            @NotNull FollowUpTarget target,
+            @NotNull FanOutGovernor.Path path,
+            @NotNull URI proxiedResponseUri
+    ) {
+        final Mono<ResponseEntity<Flux<DataBuffer>>> proxiedResponse = followUpLimits.execute(
+            exchange,
+            target.uri(),
+            target.mapping(),
+            () -> proxyRequest(
+                HttpMethod.GET,
+                target.uri(),
+                prepareProxyRequestHeaders(exchange.getRequest().getHeaders(),target.uri()),
+                Optional.empty(),
+                target.mapping(),
+                true
+            )
+        ).map(FanOutGovernor.of(exchange)::counted);
+        final DataBufferFactory bufferFactory = exchange.getResponse().bufferFactory();
         return proxiedResponse
-            .toBodilessEntity()
             .flatMapMany( responseEntity -> {
-                return proxiedResponse.bodyToMono(String.class)
-                    .flatMapMany( body ->{
-                        final HttpHeaders proxiedResponseHeaders = responseEntity.getHeaders();
-                        final ProxyQueryProcessor.Result processingResult = proxyQueryProcessor
-                            .processFollowUpTask(parseJson(body), task);
+                if (processingEngine == ProcessingEngine.INCREMENTAL) {
+                    return respondChunksAsMultipartEvents(
+                        exchange,
+                        streamingQueryProcessor.processFollowUpTaskIncrementally(
+                            Optional.ofNullable(responseEntity.getBody()).orElse(Flux.empty()), bufferFactory, task
+                        ),
+                        responseEntity.getHeaders(),
+                        proxiedResponseUri,
+                        path,
+                        false
+                    );
+                }
+                return processBody(
+                        responseEntity.getBody(),
+                        body -> ProcessedBody.of(proxyQueryProcessor.processFollowUpTask(parseJson(body), task), bufferFactory),
+                        body -> streamingQueryProcessor.processFollowUpTaskIncrementally(body, bufferFactory, task)
+                    )
+                    .flatMapMany( processingResult ->{
                         return respondResultAsMultipartEvents(
                             exchange,
                             proxyQueryProcessor,
                             processingResult,
                             responseEntity.getHeaders(),
-                            proxiedResponseUri
+                            proxiedResponseUri,
+                            path
                         );
                     });
             })
@@ -322,7 +1038,7 @@ public class ProxyService {
 
     }
 
-    private DataBuffer writeJsonTreeToDataBuffer(JsonNode rootNode, DataBufferFactory bufferFactory){
+    private static DataBuffer writeJsonTreeToDataBuffer(JsonNode rootNode, DataBufferFactory bufferFactory){
         final byte[] jsonInBytes;
         try {
             jsonInBytes = objectMapper.writeValueAsBytes(rootNode);
@@ -333,20 +1049,54 @@ public class ProxyService {
     }
 
     private PartEvent createPartEvent(HttpHeaders headers, DataBuffer content) {
-        return DefaultPartEvents.create(headers, content,true);
+        return createPartEvent(headers, content, true);
+    }
+
+    private PartEvent createPartEvent(HttpHeaders headers, DataBuffer content, boolean isLast) {
+        return DefaultPartEvents.create(createPartHeaders(headers), content, isLast);
+    }
+
+    private HttpHeaders createPartHeaders(HttpHeaders headers) {
+        final HttpHeaders partHeaders = new HttpHeaders();
+        partHeaders.addAll(headers);
+        // the length of the filtered body differs from the proxied one
+        partHeaders.remove(HttpHeaders.CONTENT_LENGTH);
+        return partHeaders;
     }
 
     private static class QueryExtractor {
         private final Optional<String> query;
+        private final JsonNode variables;
         private final Flux<DataBuffer> body;
         private final DataBufferFactory bufferFactory;
         private byte[] bodyInBytes;
         private JsonNode jsonBody;
 
-        public QueryExtractor(ServerWebExchange exchange) {
+        public QueryExtractor(ServerWebExchange exchange, PersistedQueries persistedQueries) {
             this.body = exchange.getRequest().getBody();
             this.bufferFactory = exchange.getResponse().bufferFactory();
-            this.query = extractQuery(exchange);
+            this.query = persistedQueries.resolve(extractQueryHash(exchange), extractQuery(exchange));
+            this.variables = this.query.isPresent() ? extractVariables(exchange) : null;
+        }
+
+        private JsonNode extractVariables(ServerWebExchange exchange) {
+            final Optional<String> variables = Optional.ofNullable(exchange.getRequest().getQueryParams().getFirst("_meshcaline_variables"))
+                    .or( () -> Optional.ofNullable(exchange.getRequest().getHeaders().getFirst("X-MESHCALINE-VARIABLES")) );
+            if (variables.isEmpty()) return null;
+            try {
+                final JsonNode result = ProxyService.objectMapper.readTree(variables.get());
+                if (!result.isObject()) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Variables have to be a JSON object");
+                }
+                return result;
+            } catch (JsonProcessingException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Variables aren't valid JSON", e);
+            }
+        }
+
+        private Optional<String> extractQueryHash(ServerWebExchange exchange) {
+            return Optional.ofNullable(exchange.getRequest().getQueryParams().getFirst("_meshcaline_query_hash"))
+                    .or( () -> Optional.ofNullable(exchange.getRequest().getHeaders().getFirst("X-MESHCALINE-QUERY-HASH")) );
         }
 
         private Optional<String> extractQuery(ServerWebExchange exchange) {
@@ -420,6 +1170,7 @@ public class ProxyService {
         public JsonNode getJsonBody() { return this.jsonBody; }
 
         public String getQuery() { return this.query.orElse(null); }
+        public JsonNode getVariables() { return this.variables; }
         public Flux<DataBuffer> getBody() {
             return hasBodyInBytes()
                 ? DataBufferUtils.read(
@@ -0,0 +1,151 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Admission control for filter queries by their estimated cost (see {@link QueryCostAnalyzer}). A query whose
+ * estimate exceeds the limit of its client is rejected with status 400. The client is identified by the header
+ * {@code X-MESHCALINE-CLIENT}; clients without a limit of their own get the default limit.
+ * <p>
+ * Expensive queries (with an estimate above {@code expensive-threshold}) additionally have to wait for one of
+ * {@code max-concurrent-expensive} slots, which are shared round robin between the clients. A query that doesn't
+ * get a slot within {@code queue-timeout} is rejected with status 503. Cheap queries are always admitted, so that
+ * a few pathological queries can't take the capacity of the proxy for themselves.
+ * <p>
+ * Estimates are published as {@code proxy.query.cost}, rejections as {@code proxy.query.rejected} with tag
+ * {@code reason} ({@code max-cost} or {@code overload}), the expensive queries in progress and waiting as
+ * {@code proxy.query.expensive.active} and {@code proxy.query.expensive.queued}.
+ */
+@Component
+public class QueryAdmission {
+
+    public static final String CLIENT_HEADER = "X-MESHCALINE-CLIENT";
+
+    /**
+     * A granted admission; has to be released once the response is complete.
+     */
+    public interface Ticket {
+        Ticket NONE = () -> {};
+
+        void release();
+    }
+
+    @Component
+    @ConfigurationProperties("proxy.query.cost")
+    static class ClientLimits {
+        // maximum estimated cost of a query, keyed by client
+        private Map<String, Long> clients = Map.of();
+
+        public Map<String, Long> clients() {
+            return clients;
+        }
+
+        public void setClients(Map<String, Long> clients) {
+            this.clients = clients;
+        }
+    }
+
+    private final ClientLimits clientLimits;
+    private final long defaultMaxCost;
+    private final long expensiveThreshold;
+    private final Duration queueTimeout;
+    private final ConcurrencyLimiter expensiveQueries;
+    private final DistributionSummary estimatedCost;
+    private final Counter rejectedMaxCost;
+    private final Counter rejectedOverload;
+
+    public QueryAdmission(
+        ClientLimits clientLimits,
+        @Value("${proxy.query.cost.max-cost:10000}") long defaultMaxCost,
+        @Value("${proxy.query.cost.expensive-threshold:100}") long expensiveThreshold,
+        @Value("${proxy.query.cost.max-concurrent-expensive:8}") int maxConcurrentExpensive,
+        @Value("${proxy.query.cost.queue-timeout:2s}") Duration queueTimeout,
+        MeterRegistry meterRegistry
+    ) {
+        this.clientLimits = clientLimits;
+        this.defaultMaxCost = defaultMaxCost;
+        this.expensiveThreshold = expensiveThreshold;
+        this.queueTimeout = queueTimeout;
+        this.expensiveQueries = new ConcurrencyLimiter(maxConcurrentExpensive);
+        this.estimatedCost = DistributionSummary.builder("proxy.query.cost")
+            .description("Estimated number of requests to the proxied services per filter query")
+            .register(meterRegistry);
+        this.rejectedMaxCost = rejectedCounter(meterRegistry, "max-cost");
+        this.rejectedOverload = rejectedCounter(meterRegistry, "overload");
+        Gauge.builder("proxy.query.expensive.active", expensiveQueries, ConcurrencyLimiter::inUse)
+            .description("Expensive filter queries in progress")
+            .register(meterRegistry);
+        Gauge.builder("proxy.query.expensive.queued", expensiveQueries, ConcurrencyLimiter::queued)
+            .description("Expensive filter queries waiting for admission")
+            .register(meterRegistry);
+    }
+
+    private static Counter rejectedCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("proxy.query.rejected")
+            .description("Filter queries that were rejected by the admission control")
+            .tag("reason", reason)
+            .register(meterRegistry);
+    }
+
+    /**
+     * Admits a query with the estimated cost, as soon as there is capacity for it.
+     * @return the ticket of the query, or an error with a {@link ResponseStatusException} if it is rejected
+     */
+    public Mono<Ticket> admit(ServerWebExchange exchange, long estimate) {
+        estimatedCost.record(estimate);
+        final String client = Optional.ofNullable(exchange.getRequest().getHeaders().getFirst(CLIENT_HEADER))
+            .map(String::trim)
+            .orElse("");
+        final long maxCost = clientLimits.clients().getOrDefault(client, defaultMaxCost);
+        if (estimate > maxCost) {
+            rejectedMaxCost.increment();
+            return Mono.error(new ResponseStatusException(
+                HttpStatus.BAD_REQUEST, "Estimated cost " + estimate + " of the query exceeds the limit " + maxCost
+            ));
+        }
+        if (estimate <= expensiveThreshold) {
+            return Mono.just(Ticket.NONE);
+        }
+        return expensiveQueries.acquire(client)
+            .timeout(queueTimeout)
+            .<Ticket>map( permit -> permit::release )
+            .onErrorMap(TimeoutException.class, e -> {
+                rejectedOverload.increment();
+                return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many expensive queries", e);
+            });
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import graphql.language.Directive;
+import graphql.language.Field;
+import graphql.language.SelectionSet;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the cost of a filter query from the structure of its {@link QueryPlan}, before the query is executed.
+ * The cost is the number of requests to the proxied services: one for the ingress request, plus the follow-up
+ * requests of the {@code @GET} directives, and recursively those of the fragments they fetch, up to the maximum
+ * follow-up depth.
+ * <p>
+ * Without a schema the proxy can't know which fields are lists, so every {@code @GET} directive is assumed to apply
+ * to {@code list-size} objects; with {@code batchHref} these are fetched in batches of {@code batchSize}. The
+ * estimate is an upper bound for typical responses rather than an exact prediction.
+ */
+@Component
+public class QueryCostAnalyzer {
+
+    private final int listSize;
+    private final int maxDepth;
+    private final int defaultBatchSize;
+    // plans are shared by the plan cache, so the estimate is kept as long as the plan is
+    private final Cache<QueryPlan, Long> estimates = Caffeine.newBuilder().weakKeys().build();
+
+    public QueryCostAnalyzer(
+        @Value("${proxy.query.cost.list-size:10}") int listSize,
+        @Value("${proxy.followups.governor.max-depth:5}") int maxDepth,
+        @Value("${proxy.followups.batch.maximum-size:50}") int defaultBatchSize
+    ) {
+        this.listSize = listSize;
+        this.maxDepth = maxDepth;
+        this.defaultBatchSize = defaultBatchSize;
+    }
+
+    /**
+     * @return the estimated number of requests to the proxied services for the query, at least 1
+     */
+    public long estimate(QueryPlan plan) {
+        return estimates.get(plan, p -> p.rootOperation()
+            .map( op -> add(1, requests(p, op.selectionSet(), op.directives(), 1, new IdentityHashMap<>())) )
+            // without a query operation the query is ignored
+            .orElse(1L)
+        );
+    }
+
+    /**
+     * @return the follow-up requests of the directives of a node and of the fields of its selection set
+     * @param depth the depth of the follow-up requests of the directives; the ingress response has depth 0
+     * @param memo the follow-up requests of the selection sets estimated so far, by depth; fragments are usually
+     *             reached by many paths, and would otherwise be estimated once per path
+     */
+    private long requests(
+        QueryPlan plan,
+        @Nullable SelectionSet selectionSet,
+        List<Directive> directives,
+        int depth,
+        Map<SelectionSet, long[]> memo
+    ) {
+        final long requests = plan.getDirective(directives)
+            .map( dir -> {
+                final int batchSize = Math.max(1, dir.batchSize().orElse(defaultBatchSize));
+                final long fanOut = dir.batchHref().isPresent() ? (listSize + batchSize - 1) / batchSize : listSize;
+                final long nested = depth < maxDepth
+                    ? dir.fragment()
+                        .map( fragment -> requests(plan, fragment.getSelectionSet(), fragment.getDirectives(), depth + 1, memo) )
+                        .orElse(0L)
+                    : 0;
+                return multiply(fanOut, add(1, nested));
+            })
+            .orElse(0L);
+        if (selectionSet == null) return requests;
+        final long[] byDepth = memo.computeIfAbsent(selectionSet, s -> {
+            final long[] unknown = new long[Math.max(1, maxDepth) + 1];
+            Arrays.fill(unknown, -1);
+            return unknown;
+        });
+        if (byDepth[depth] < 0) {
+            long fieldRequests = 0;
+            for (List<Field> fields : plan.candidateFields(selectionSet).values()) {
+                for (Field field : fields) {
+                    fieldRequests = add(fieldRequests, requests(plan, field.getSelectionSet(), field.getDirectives(), depth, memo));
+                }
+            }
+            byDepth[depth] = fieldRequests;
+        }
+        return add(requests, byDepth[depth]);
+    }
+
+    private static long add(long a, long b) {
+        final long sum = a + b;
+        // saturate instead of overflowing for pathological queries
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static long multiply(long a, long b) {
+        return Math.multiplyHigh(a, b) != 0 || a * b < 0 ? Long.MAX_VALUE : a * b;
+    }
+}
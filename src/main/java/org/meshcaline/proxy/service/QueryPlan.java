@@ -0,0 +1,406 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import graphql.language.*;
+import graphql.parser.Parser;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.*;
+
+/**
+ * Precompiled form of a filter query. All lookups that the {@link ProxyQueryProcessor} needs while
+ * walking a JSON document (fragments by name and type, the flattened fields of a selection set,
+ * the arguments of {@code @GET} directives) are resolved once when the plan is compiled.
+ * <p>
+ * A plan is immutable after construction and can be shared between concurrent requests. Arguments of directives
+ * may refer to variables of the query operation ({@code query users($href: String = "./${id}")}). The compiled
+ * plan applies their default values; {@link #bind(JsonNode)} creates a plan for the variables of a request that
+ * shares everything compiled, and only resolves the directives that refer to variables again.
+ */
+public class QueryPlan {
+
+    private final Document document;
+    private final Optional<RootOperation> rootOperation;
+    private final Map<String, List<FragmentDefinition>> fragmentsByName;
+    private final Map<SelectionSet, CompiledSelectionSet> selectionSets = new IdentityHashMap<>();
+    private final Map<List<Directive>, Optional<GetDirective>> getDirectives = new IdentityHashMap<>();
+    private final Set<List<Directive>> variableDirectives = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<String, Value<?>> defaultValues;
+    private final boolean hasGetDirectives;
+    private final Optional<Argument> followUpOrderArgument;
+    // the variables of a bound plan, null for the compiled plan
+    @Nullable
+    private final JsonNode variables;
+    @Nullable
+    private final QueryPlan compiled;
+
+    record RootOperation (
+        @Nullable String name,
+        SelectionSet selectionSet,
+        List<Directive> directives
+    ){
+        public static RootOperation of(OperationDefinition queryOperation){
+            return new RootOperation(
+                queryOperation.getName(),
+                queryOperation.getSelectionSet(),
+                queryOperation.getDirectives()
+            );
+        }
+
+        public static RootOperation of(FragmentDefinition fragment){
+            return new RootOperation(
+                fragment.getTypeCondition().getName(),
+                fragment.getSelectionSet(),
+                fragment.getDirectives()
+            );
+        }
+    }
+
+    /**
+     * The parsed arguments of a {@code @GET} directive, with the URL templates compiled. Arguments are kept optional,
+     * so that a missing argument is only reported when the directive is applied to a JSON node.
+     * <p>
+     * With {@code batchHref} the resources of several objects are fetched with one request. The {@code ${ids}}
+     * placeholder of the template is replaced by the comma separated values of the {@code batchKey} attribute
+     * (default {@code id}) of the objects, and the elements of the (array) response are assigned to the objects
+     * by the same attribute. At most {@code batchSize} objects are fetched with one request.
+     * <p>
+     * With the follow-up order {@code priority}, follow-ups with a higher {@code priority} (default 0) are
+     * requested and emitted first.
+     */
+    record GetDirective (
+        Optional<String> fragmentName,
+        Optional<HrefTemplate> href,
+        Optional<String> type,
+        Optional<FragmentDefinition> fragment,
+        Optional<HrefTemplate> batchHref,
+        Optional<String> batchKey,
+        Optional<Integer> batchSize,
+        int priority
+    ){
+    }
+
+    public static QueryPlan compile(String filterQuery) {
+        return new QueryPlan(new Parser().parseDocument(filterQuery));
+    }
+
+    private QueryPlan(Document document) {
+        this.document = document;
+        this.variables = null;
+        this.compiled = null;
+        final Map<String, List<FragmentDefinition>> fragments = new HashMap<>();
+        for (FragmentDefinition fragment : document.getDefinitionsOfType(FragmentDefinition.class)) {
+            fragments.computeIfAbsent(fragment.getName(), name -> new ArrayList<>()).add(fragment);
+        }
+        this.fragmentsByName = fragments;
+        this.rootOperation = document
+            .getDefinitionsOfType(OperationDefinition.class)
+            .stream()
+            .filter( opDef -> OperationDefinition.Operation.QUERY.equals(opDef.getOperation()) )
+            .findFirst()
+            .map(RootOperation::of);
+        this.defaultValues = document
+            .getDefinitionsOfType(OperationDefinition.class)
+            .stream()
+            .filter( opDef -> OperationDefinition.Operation.QUERY.equals(opDef.getOperation()) )
+            .findFirst()
+            .map( opDef -> {
+                final Map<String, Value<?>> values = new HashMap<>();
+                opDef.getVariableDefinitions().stream()
+                    .filter( definition -> definition.getDefaultValue() != null )
+                    .forEach( definition -> values.put(definition.getName(), definition.getDefaultValue()) );
+                return values;
+            })
+            .orElse(Map.of());
+        // compile everything that is reachable from the root operation, or from one of the fragments
+        this.rootOperation.ifPresent( op -> compile(op.selectionSet(), op.directives()) );
+        fragments.values().forEach( list -> list.forEach( fragment ->
+            compile(fragment.getSelectionSet(), fragment.getDirectives())
+        ));
+        this.hasGetDirectives = getDirectives.values().stream().anyMatch(Optional::isPresent);
+        this.followUpOrderArgument = this.rootOperation.flatMap( op -> op.directives().stream()
+            .filter( d -> "ORDER".equals(d.getName()) )
+            .findFirst()
+            .flatMap( dir -> Optional.ofNullable(dir.getArgument("mode")) )
+        );
+    }
+
+    private QueryPlan(QueryPlan compiled, JsonNode variables) {
+        this.document = compiled.document;
+        this.rootOperation = compiled.rootOperation;
+        this.fragmentsByName = compiled.fragmentsByName;
+        this.defaultValues = compiled.defaultValues;
+        this.hasGetDirectives = compiled.hasGetDirectives;
+        this.followUpOrderArgument = compiled.followUpOrderArgument;
+        this.variables = variables;
+        this.compiled = compiled;
+        // only directives that refer to variables differ from the compiled plan, they are resolved once per binding
+        compiled.variableDirectives.forEach( directives -> getDirectives.put(directives, compileGetDirective(directives)) );
+    }
+
+    /**
+     * @param variables the values of the variables of the query operation, as JSON object
+     * @return the plan with the given variables; the compiled plan itself, if there are none
+     */
+    QueryPlan bind(@Nullable JsonNode variables) {
+        final QueryPlan plan = compiled != null ? compiled : this;
+        if (variables == null || variables.isEmpty()) return plan;
+        if (!variables.isObject()) {
+            throw new IllegalArgumentException("Variables have to be a JSON object: " + variables);
+        }
+        return new QueryPlan(plan, variables);
+    }
+
+    public Document document() {
+        return document;
+    }
+
+    /**
+     * @return the query operation of the plan, or empty if the query doesn't contain a query operation
+     */
+    Optional<RootOperation> rootOperation() {
+        return rootOperation;
+    }
+
+    Optional<FragmentDefinition> findFragment(
+        @NonNull String fragmentName,
+        @NonNull Optional<String> requiredType
+    ) {
+        return fragmentsByName.getOrDefault(fragmentName, Collections.emptyList()).stream()
+            .filter( fragment -> isTypeMatch(fragment.getTypeCondition(), requiredType) )
+            .findFirst();
+    }
+
+    /**
+     * @return the fields of the selection set that apply to a JSON node of the given type,
+     * with all (inline) fragments expanded
+     */
+    List<Field> applicableFields(SelectionSet selectionSet, Optional<String> requiredType) {
+        return compiled(selectionSet).fields(requiredType);
+    }
+
+    /**
+     * @return the fields of the selection set, grouped by name, that apply to a JSON node of any type.
+     * Different field definitions for the same name (e.g. from fragments on different types) are all included.
+     */
+    Map<String, List<Field>> candidateFields(SelectionSet selectionSet) {
+        return compiled(selectionSet).candidateFields;
+    }
+
+    /**
+     * @return whether the query contains any {@code @GET} directive
+     */
+    boolean hasGetDirectives() {
+        return hasGetDirectives;
+    }
+
+    /**
+     * @return the order of the follow-up parts requested with an {@code @ORDER(mode: ...)} directive on the
+     * query operation, if there is one
+     */
+    Optional<String> followUpOrder() {
+        return followUpOrderArgument.flatMap(this::stringValue);
+    }
+
+    Optional<GetDirective> getDirective(List<Directive> directives) {
+        if (compiled != null) {
+            final Optional<GetDirective> bound = getDirectives.get(directives);
+            return bound != null ? bound : compiled.getDirective(directives);
+        }
+        final Optional<GetDirective> result = getDirectives.get(directives);
+        return result != null ? result : compileGetDirective(directives);
+    }
+
+    private CompiledSelectionSet compiled(SelectionSet selectionSet) {
+        if (compiled != null) return compiled.compiled(selectionSet);
+        final CompiledSelectionSet result = selectionSets.get(selectionSet);
+        // selection sets of the plan are compiled eagerly, this is only a fallback for foreign ones
+        return result != null ? result : new CompiledSelectionSet(selectionSet);
+    }
+
+    private void compile(@Nullable SelectionSet selectionSet, List<Directive> directives) {
+        getDirectives.computeIfAbsent(directives, this::compileGetDirective);
+        if (directives.stream().anyMatch( d -> "GET".equals(d.getName())
+                && d.getArguments().stream().anyMatch( arg -> arg.getValue() instanceof VariableReference ) )) {
+            variableDirectives.add(directives);
+        }
+        if (selectionSet == null || selectionSets.containsKey(selectionSet)) return;
+        selectionSets.put(selectionSet, new CompiledSelectionSet(selectionSet));
+        for (Selection<?> selection : selectionSet.getSelections()) {
+            if (selection instanceof Field field) {
+                compile(field.getSelectionSet(), field.getDirectives());
+            }
+            else if (selection instanceof InlineFragment inlineFragment) {
+                compile(inlineFragment.getSelectionSet(), inlineFragment.getDirectives());
+            }
+        }
+    }
+
+    private Optional<GetDirective> compileGetDirective(List<Directive> directives) {
+        return directives.stream()
+            .filter( d -> "GET".equals(d.getName()) )
+            .findFirst()
+            .map( dir -> {
+                final Optional<String> fragmentName = findDirectiveArgumentValue(dir, "fragment");
+                final Optional<String> type = findDirectiveArgumentValue(dir, "type");
+                return new GetDirective(
+                    fragmentName,
+                    findDirectiveArgumentValue(dir, "href").map(HrefTemplate::compile),
+                    type,
+                    fragmentName.flatMap( name -> findFragment(name, type) ),
+                    findDirectiveArgumentValue(dir, "batchHref").map(HrefTemplate::compile),
+                    findDirectiveArgumentValue(dir, "batchKey"),
+                    findDirectiveIntArgumentValue(dir, "batchSize"),
+                    findDirectiveIntArgumentValue(dir, "priority").orElse(0)
+                );
+            });
+    }
+
+    private Optional<String> findDirectiveArgumentValue(Directive directive, String argumentName) {
+        return Optional.ofNullable(directive.getArgument(argumentName))
+            .flatMap(this::stringValue);
+    }
+
+    private Optional<Integer> findDirectiveIntArgumentValue(Directive directive, String argumentName) {
+        return findDirectiveArgumentValue(directive, argumentName)
+            .map(Integer::parseInt);
+    }
+
+    /**
+     * @return the value of the argument as string; the value of a variable is taken from the bound variables, or
+     * the default value of its definition. Empty if the variable has neither.
+     */
+    private Optional<String> stringValue(Argument argument) {
+        if (argument.getValue() instanceof VariableReference reference) {
+            final Optional<String> value = Optional.ofNullable(variables)
+                .map( vars -> vars.get(reference.getName()) )
+                .filter( node -> !node.isNull() )
+                .map(JsonNode::asText);
+            return value.isPresent()
+                ? value
+                : Optional.ofNullable(defaultValues.get(reference.getName())).map(QueryPlan::stringValue);
+        }
+        return Optional.of(stringValue(argument.getValue()));
+    }
+
+    private static String stringValue(Value<?> value) {
+        if (value instanceof StringValue stringValue) return stringValue.getValue();
+        if (value instanceof IntValue intValue) return intValue.getValue().toString();
+        if (value instanceof EnumValue enumValue) return enumValue.getName();
+        if (value instanceof BooleanValue booleanValue) return String.valueOf(booleanValue.isValue());
+        if (value instanceof FloatValue floatValue) return floatValue.getValue().toString();
+        throw new IllegalArgumentException("Unsupported argument value " + value);
+    }
+
+    private static boolean isTypeMatch(@NonNull TypeName typeName, @NonNull Optional<String> requiredType) {
+        return requiredType
+            .map(t -> t.equals(typeName.getName()))
+            .orElse(true);
+    }
+
+    /**
+     * A selection set with its fragment spreads and inline fragments expanded. As the expansion only
+     * depends on the required type, the result is precomputed for each type mentioned in a type
+     * condition of the selection set, for nodes without type, and for all other types.
+     */
+    private class CompiledSelectionSet {
+        private final List<Field> untypedFields;
+        private final List<Field> otherTypeFields;
+        private final Map<String, List<Field>> fieldsByType = new HashMap<>();
+        private final Map<String, List<Field>> candidateFields = new HashMap<>();
+
+        CompiledSelectionSet(SelectionSet selectionSet) {
+            final Set<String> typeNames = new LinkedHashSet<>();
+            collectTypeNames(selectionSet, typeNames, new HashSet<>());
+            this.untypedFields = expand(selectionSet, Optional.empty(), new ArrayList<>(), new HashSet<>());
+            // a type name that no condition refers to; there are no type conditions using it
+            this.otherTypeFields = expand(selectionSet, Optional.of(""), new ArrayList<>(), new HashSet<>());
+            for (String typeName : typeNames) {
+                fieldsByType.put(typeName, expand(selectionSet, Optional.of(typeName), new ArrayList<>(), new HashSet<>()));
+            }
+            addCandidates(untypedFields);
+            addCandidates(otherTypeFields);
+            fieldsByType.values().forEach(this::addCandidates);
+        }
+
+        private void addCandidates(List<Field> fields) {
+            for (Field field : fields) {
+                final List<Field> candidates = candidateFields.computeIfAbsent(field.getName(), name -> new ArrayList<>());
+                if (candidates.stream().noneMatch( candidate -> candidate == field )) {
+                    candidates.add(field);
+                }
+            }
+        }
+
+        List<Field> fields(Optional<String> requiredType) {
+            return requiredType
+                .map( type -> fieldsByType.getOrDefault(type, otherTypeFields) )
+                .orElse(untypedFields);
+        }
+
+        private void collectTypeNames(SelectionSet selectionSet, Set<String> typeNames, Set<String> visitedFragments) {
+            for (Selection<?> selection : selectionSet.getSelections()) {
+                if (selection instanceof FragmentSpread fragmentSpread) {
+                    if (!visitedFragments.add(fragmentSpread.getName())) continue;
+                    for (FragmentDefinition fragment : fragmentsByName.getOrDefault(fragmentSpread.getName(), Collections.emptyList())) {
+                        typeNames.add(fragment.getTypeCondition().getName());
+                        collectTypeNames(fragment.getSelectionSet(), typeNames, visitedFragments);
+                    }
+                }
+                else if (selection instanceof InlineFragment inlineFragment) {
+                    if (inlineFragment.getTypeCondition() != null) {
+                        typeNames.add(inlineFragment.getTypeCondition().getName());
+                    }
+                    collectTypeNames(inlineFragment.getSelectionSet(), typeNames, visitedFragments);
+                }
+            }
+        }
+
+        private List<Field> expand(
+            SelectionSet selectionSet,
+            Optional<String> requiredType,
+            List<Field> fields,
+            Set<String> visitedFragments
+        ) {
+            for (Selection<?> selection : selectionSet.getSelections()) {
+                if (selection instanceof Field field) {
+                    fields.add(field);
+                }
+                else if (selection instanceof FragmentSpread fragmentSpread) {
+                    // guard against fragments that (indirectly) spread themselves
+                    if (!visitedFragments.add(fragmentSpread.getName())) continue;
+                    findFragment(fragmentSpread.getName(), requiredType)
+                        .ifPresent( fragment -> expand(fragment.getSelectionSet(), requiredType, fields, visitedFragments) );
+                    visitedFragments.remove(fragmentSpread.getName());
+                }
+                else if (selection instanceof InlineFragment inlineFragment) {
+                    if (inlineFragment.getTypeCondition() == null
+                            || isTypeMatch(inlineFragment.getTypeCondition(), requiredType)) {
+                        expand(inlineFragment.getSelectionSet(), requiredType, fields, visitedFragments);
+                    }
+                }
+            }
+            return Collections.unmodifiableList(fields);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size-limited cache of compiled {@link QueryPlan}s keyed by the query text.
+ * Hit, miss and eviction counts are published as {@code cache.*} metrics with tag {@code cache=proxy.query.plans}.
+ * Plans of registered queries (see {@link PersistedQueries}) are pinned, and aren't subject to eviction.
+ */
+@Component
+public class QueryPlanCache {
+
+    private final Cache<String, QueryPlan> plans;
+    private final Map<String, QueryPlan> pinned = new ConcurrentHashMap<>();
+
+    public QueryPlanCache(
+        @Value("${proxy.query.plan-cache.maximum-size:1000}") long maximumSize,
+        MeterRegistry meterRegistry
+    ) {
+        this.plans = Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, this.plans, "proxy.query.plans");
+    }
+
+    /**
+     * @return the compiled plan for the query; the query is parsed and compiled on a cache miss
+     */
+    public QueryPlan get(String filterQuery) {
+        final QueryPlan plan = pinned.get(filterQuery);
+        return plan != null ? plan : plans.get(filterQuery, QueryPlan::compile);
+    }
+
+    /**
+     * Compiles the plan for the query, and keeps it until it is unpinned.
+     */
+    void pin(String filterQuery) {
+        pinned.computeIfAbsent(filterQuery, this::get);
+    }
+
+    void unpin(String filterQuery) {
+        pinned.remove(filterQuery);
+    }
+}
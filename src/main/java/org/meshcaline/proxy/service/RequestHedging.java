@@ -0,0 +1,211 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.meshcaline.proxy.configuration.model.ProxyConfiguration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hedges GET follow-up requests of mappings with the {@code hedgeFollowUps} option: if the response of the
+ * proxied service hasn't started after the configured percentile of the recent response times of the mapping,
+ * a second, identical request is sent. The first response wins, the other request is cancelled, and the body of
+ * a losing response that arrived anyway is released; a request that fails doesn't win, the hedged request only
+ * fails once both requests have failed.
+ * <p>
+ * The extra requests are limited by a budget per mapping: every request adds the configured fraction of a token,
+ * every hedge takes a full token, and at most {@code max-burst} tokens are saved up. The response times are
+ * published as {@code proxy.followups.latency}, the hedges as {@code proxy.followups.hedged} with tag
+ * {@code result} ({@code won}, {@code lost}, or {@code no-budget}), both with tag {@code mapping}.
+ */
+@Component
+public class RequestHedging {
+
+    private final double percentile;
+    private final double budget;
+    private final double maxBurst;
+    private final long minSamples;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, MappingStatistics> statistics = new ConcurrentHashMap<>();
+
+    public RequestHedging(
+        @Value("${proxy.followups.hedging.percentile:0.95}") double percentile,
+        @Value("${proxy.followups.hedging.budget:0.05}") double budget,
+        @Value("${proxy.followups.hedging.max-burst:10}") double maxBurst,
+        @Value("${proxy.followups.hedging.min-samples:100}") long minSamples,
+        MeterRegistry meterRegistry
+    ) {
+        this.percentile = percentile;
+        this.budget = budget;
+        this.maxBurst = maxBurst;
+        this.minSamples = minSamples;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @return whether requests of the mapping with the given method and body may be hedged
+     */
+    public boolean appliesTo(ProxyConfiguration.Mapping mapping, HttpMethod method, boolean hasBody) {
+        return mapping.options().hedgeFollowUps() && HttpMethod.GET.equals(method) && !hasBody;
+    }
+
+    /**
+     * Executes the request, and a hedge of it, if the response doesn't start in time.
+     * @param request performs the actual exchange with the proxied service; called once per attempt
+     */
+    public Mono<ResponseEntity<Flux<DataBuffer>>> execute(
+        ProxyConfiguration.Mapping mapping,
+        Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> request
+    ) {
+        return Mono.defer( () -> {
+            final MappingStatistics mappingStatistics = statistics.computeIfAbsent(mapping.id(), MappingStatistics::new);
+            mappingStatistics.deposit();
+            final Mono<ResponseEntity<Flux<DataBuffer>>> primary = mappingStatistics.timed(request.get());
+            final AtomicBoolean hedged = new AtomicBoolean();
+            final AtomicBoolean decided = new AtomicBoolean();
+            final AtomicReference<Throwable> primaryError = new AtomicReference<>();
+            return mappingStatistics.threshold()
+                .map( threshold -> Mono.firstWithValue(
+                    primary
+                        .filter( response -> wins(decided, response) )
+                        .doOnNext( response -> {
+                            if (hedged.get()) mappingStatistics.lost.increment();
+                        })
+                        .doOnError(primaryError::set),
+                    Mono.delay(threshold)
+                        // without budget the primary request is the only one
+                        .filter( tick -> mappingStatistics.withdraw() )
+                        .flatMap( tick -> {
+                            hedged.set(true);
+                            return mappingStatistics.timed(request.get());
+                        })
+                        .filter( response -> wins(decided, response) )
+                        .doOnNext( response -> mappingStatistics.won.increment() )
+                    )
+                    // neither request succeeded, fail as the request would have without hedging
+                    .onErrorMap(NoSuchElementException.class, e -> primaryError.get() != null ? primaryError.get() : e)
+                )
+                .orElse(primary);
+        });
+    }
+
+    /**
+     * Decides the race between the two requests: only the first response is passed on, so there is exactly one
+     * winner, even if both responses arrive at the same time. The body of the other one is released, which
+     * closes its connection.
+     */
+    private static boolean wins(AtomicBoolean decided, ResponseEntity<Flux<DataBuffer>> response) {
+        if (decided.compareAndSet(false, true)) {
+            return true;
+        }
+        Optional.ofNullable(response.getBody()).ifPresent( body -> body.subscribe(DataBufferUtils::release).dispose() );
+        return false;
+    }
+
+    /**
+     * The response times and the hedging budget of a mapping.
+     */
+    private class MappingStatistics {
+        private final Timer latency;
+        private final Counter won;
+        private final Counter lost;
+        private final Counter noBudget;
+        private double tokens;
+        private volatile Optional<Duration> threshold = Optional.empty();
+        private volatile long thresholdExpiry;
+
+        MappingStatistics(String mappingId) {
+            this.latency = Timer.builder("proxy.followups.latency")
+                .description("Time until the responses of follow-up requests start")
+                .tag("mapping", mappingId)
+                .publishPercentiles(percentile)
+                .register(meterRegistry);
+            this.won = hedgeCounter(mappingId, "won");
+            this.lost = hedgeCounter(mappingId, "lost");
+            this.noBudget = hedgeCounter(mappingId, "no-budget");
+            this.thresholdExpiry = System.nanoTime();
+        }
+
+        private Counter hedgeCounter(String mappingId, String result) {
+            return Counter.builder("proxy.followups.hedged")
+                .description("Follow-up requests that exceeded the hedging threshold")
+                .tags("mapping", mappingId, "result", result)
+                .register(meterRegistry);
+        }
+
+        Mono<ResponseEntity<Flux<DataBuffer>>> timed(Mono<ResponseEntity<Flux<DataBuffer>>> request) {
+            return Mono.defer( () -> {
+                final long start = System.nanoTime();
+                return request.doOnNext( response -> latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS) );
+            });
+        }
+
+        /**
+         * @return the configured percentile of the recent response times, once there are enough samples;
+         * it is recomputed once per second at most
+         */
+        Optional<Duration> threshold() {
+            final long now = System.nanoTime();
+            if (now - thresholdExpiry > 0) {
+                thresholdExpiry = now + TimeUnit.SECONDS.toNanos(1);
+                threshold = latency.count() < minSamples
+                    ? Optional.empty()
+                    : Arrays.stream(latency.takeSnapshot().percentileValues())
+                        .findFirst()
+                        .map( value -> Duration.ofNanos((long) value.value(TimeUnit.NANOSECONDS)) )
+                        .filter( value -> !value.isZero() );
+            }
+            return threshold;
+        }
+
+        synchronized void deposit() {
+            tokens = Math.min(maxBurst, tokens + budget);
+        }
+
+        synchronized boolean withdraw() {
+            if (tokens < 1) {
+                noBudget.increment();
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
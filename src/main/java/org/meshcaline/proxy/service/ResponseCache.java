@@ -0,0 +1,549 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.IllegalReferenceCountException;
+import org.meshcaline.proxy.util.HTTPUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.*;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Shared cache for GET responses of the proxied services that follows the caching rules of HTTP
+ * ({@code Cache-Control}, {@code Expires} and {@code Vary}, see RFC 9111). There is no heuristic freshness,
+ * so responses without explicit lifetime are only stored if they carry a validator.
+ * <p>
+ * Fresh responses are served right away. Stale responses with an {@code ETag} or {@code Last-Modified} validator
+ * are kept for a while longer, and revalidated with a conditional request, so that an unchanged resource only
+ * costs a {@code 304 Not Modified} exchange. Within the {@code stale-while-revalidate} window a stale response
+ * is served as is, while it is revalidated in the background.
+ * <p>
+ * Bodies are kept off-heap in pooled direct memory, limited by a budget of bytes. The cache evicts by W-TinyLFU,
+ * which also keeps one-hit wonders of large fan-outs from displacing the frequently requested resources.
+ * Entries are handed out as retained duplicates of the stored buffer, so hits don't copy the body.
+ * <p>
+ * Hits, misses, evictions and the memory in use are published as {@code cache.*} metrics with tag
+ * {@code cache=proxy.responses}, and as {@code proxy.response.cache.*}.
+ */
+@Component
+public final class ResponseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseCache.class);
+
+    private static final Set<HttpStatusCode> CACHEABLE_STATUS_CODES = Set.of(HttpStatus.OK, HttpStatus.NON_AUTHORITATIVE_INFORMATION);
+    // headers of a 304 response that describe its (empty) body rather than the stored one
+    private static final Set<String> BODY_HEADERS = Set.of(HttpHeaders.CONTENT_LENGTH, HttpHeaders.TRANSFER_ENCODING);
+    // rough size of the meta data of an entry, so that entries with tiny bodies aren't for free
+    private static final int ENTRY_OVERHEAD = 512;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * How long a stored response may be used, in milliseconds.
+     * @param freshness while the response may be served without revalidation
+     * @param staleWhileRevalidate how long beyond its freshness the response may be served while it is revalidated
+     */
+    private record Lifetime (
+        long freshness,
+        long staleWhileRevalidate
+    ){
+    }
+
+    private record CachedResponse (
+        HttpStatusCode statusCode,
+        HttpHeaders headers,
+        List<String> varyHeaders,
+        List<List<String>> varyValues,
+        ByteBuf body,
+        long storedAt,
+        long initialAge,
+        Lifetime lifetime
+    ){
+        boolean matches(HttpHeaders requestHeaders) {
+            return varyValues.equals(ResponseCache.varyValues(varyHeaders, requestHeaders));
+        }
+
+        long age(long now) {
+            return initialAge + Math.max(0, now - storedAt);
+        }
+
+        boolean isFresh(long now) {
+            return age(now) < lifetime.freshness();
+        }
+
+        boolean mayServeStale(long now) {
+            return age(now) < lifetime.freshness() + lifetime.staleWhileRevalidate();
+        }
+
+        boolean hasValidators() {
+            return headers.getETag() != null || headers.getLastModified() >= 0;
+        }
+
+        int weight() {
+            return ENTRY_OVERHEAD + body.readableBytes();
+        }
+    }
+
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(allocator);
+    private final StatsCounter statsCounter = new ConcurrentStatsCounter();
+    private final Cache<URI, CachedResponse> responses;
+    // URIs with a background revalidation in progress
+    private final Set<URI> revalidating = ConcurrentHashMap.newKeySet();
+    private final int maximumEntrySize;
+    private final long staleRetention;
+    private final long defaultStaleWhileRevalidate;
+    private final Counter notModified;
+    private final Counter modified;
+    private final Counter staleServed;
+
+    public ResponseCache(
+        @Value("${proxy.response-cache.maximum-size:64MB}") DataSize maximumSize,
+        @Value("${proxy.response-cache.maximum-entry-size:1MB}") DataSize maximumEntrySize,
+        @Value("${proxy.response-cache.stale-retention:10m}") Duration staleRetention,
+        @Value("${proxy.response-cache.stale-while-revalidate:0s}") Duration defaultStaleWhileRevalidate,
+        MeterRegistry meterRegistry
+    ) {
+        this.maximumEntrySize = (int) Math.min(Integer.MAX_VALUE, maximumEntrySize.toBytes());
+        this.staleRetention = staleRetention.toMillis();
+        this.defaultStaleWhileRevalidate = defaultStaleWhileRevalidate.toMillis();
+        this.responses = Caffeine.newBuilder()
+            .maximumWeight(maximumSize.toBytes())
+            .weigher( (URI uri, CachedResponse response) -> response.weight() )
+            .expireAfter(new Expiry<URI, CachedResponse>() {
+                public long expireAfterCreate(URI uri, CachedResponse response, long currentTime) {
+                    return remainingRetention(response);
+                }
+                public long expireAfterUpdate(URI uri, CachedResponse response, long currentTime, long currentDuration) {
+                    return remainingRetention(response);
+                }
+                public long expireAfterRead(URI uri, CachedResponse response, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            // release the off-heap memory right away, rather than on the common pool
+            .executor(Runnable::run)
+            .removalListener( (URI uri, CachedResponse response, RemovalCause cause) -> {
+                if (response != null) response.body().release();
+            })
+            .recordStats( () -> statsCounter )
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, this.responses, "proxy.responses");
+        Gauge.builder("proxy.response.cache.memory.used", this, ResponseCache::memoryUsed)
+            .description("Bytes held by the bodies and meta data of cached responses")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder("proxy.response.cache.hit.ratio", this.responses, cache -> cache.stats().hitRate())
+            .description("Ratio of cacheable requests that have been served from the response cache")
+            .register(meterRegistry);
+        this.notModified = Counter.builder("proxy.response.cache.revalidations")
+            .description("Conditional requests for stale cached responses")
+            .tag("result", "not-modified")
+            .register(meterRegistry);
+        this.modified = Counter.builder("proxy.response.cache.revalidations")
+            .description("Conditional requests for stale cached responses")
+            .tag("result", "modified")
+            .register(meterRegistry);
+        this.staleServed = Counter.builder("proxy.response.cache.stale")
+            .description("Stale responses that have been served while they were revalidated in the background")
+            .register(meterRegistry);
+    }
+
+    /**
+     * @return whether responses for requests with the given method and body can be cached
+     */
+    public boolean appliesTo(HttpMethod method, boolean hasBody) {
+        return !hasBody && HttpMethod.GET.equals(method);
+    }
+
+    /**
+     * Serves the request from the cache if possible, otherwise the response of the exchange is stored in the cache.
+     * @param exchange performs the exchange with the proxied service with the given request headers; stale responses
+     *                 are revalidated by adding conditional headers to the request headers
+     */
+    public Mono<ResponseEntity<Flux<DataBuffer>>> execute(
+        URI uri,
+        HttpHeaders requestHeaders,
+        Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>> exchange
+    ) {
+        return Mono.defer( () -> {
+            final Map<String, String> cacheControl = HTTPUtils.parseCacheControl(requestHeaders.getOrEmpty(HttpHeaders.CACHE_CONTROL));
+            if (cacheControl.containsKey("no-store")
+                    || requestHeaders.containsKey(HttpHeaders.IF_NONE_MATCH)
+                    || requestHeaders.containsKey(HttpHeaders.IF_MODIFIED_SINCE)) {
+                // the client handles the validation of its own copy
+                return exchange.apply(requestHeaders);
+            }
+            final boolean noCache = cacheControl.containsKey("no-cache")
+                || requestHeaders.getOrEmpty(HttpHeaders.PRAGMA).contains("no-cache");
+            final long now = System.currentTimeMillis();
+            // a lookup through the map view counts as access for the eviction policy, but not for the statistics,
+            // which we record ourselves as a response that doesn't match the vary headers is a miss
+            final CachedResponse cached = Optional.ofNullable(responses.asMap().get(uri))
+                .filter( response -> response.matches(requestHeaders) )
+                .orElse(null);
+            if (cached != null && !noCache && cached.mayServeStale(now)) {
+                final Optional<ResponseEntity<Flux<DataBuffer>>> entity = toResponseEntity(cached);
+                if (entity.isPresent()) {
+                    statsCounter.recordHits(1);
+                    if (!cached.isFresh(now)) {
+                        staleServed.increment();
+                        revalidateInBackground(uri, requestHeaders, cached, exchange);
+                    }
+                    return Mono.just(entity.get());
+                }
+            }
+            statsCounter.recordMisses(1);
+            return cached != null && cached.hasValidators()
+                ? revalidate(uri, requestHeaders, cached, exchange)
+                : store(uri, requestHeaders, exchange.apply(requestHeaders));
+        });
+    }
+
+    /**
+     * Sends a conditional request for the stale response. If the proxied service confirms that it is unchanged,
+     * the stored response is refreshed with the headers of the confirmation and served; otherwise the new response
+     * replaces the stored one.
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> revalidate(
+        URI uri,
+        HttpHeaders requestHeaders,
+        CachedResponse cached,
+        Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>> exchange
+    ) {
+        final HttpHeaders conditionalHeaders = new HttpHeaders();
+        conditionalHeaders.addAll(requestHeaders);
+        if (cached.headers().getETag() != null) {
+            conditionalHeaders.setIfNoneMatch(cached.headers().getETag());
+        }
+        if (cached.headers().getLastModified() >= 0) {
+            conditionalHeaders.setIfModifiedSince(cached.headers().getLastModified());
+        }
+        return exchange.apply(conditionalHeaders)
+            .flatMap( entity -> {
+                if (entity.getStatusCode().value() != HttpStatus.NOT_MODIFIED.value()) {
+                    modified.increment();
+                    return store(uri, requestHeaders, Mono.just(entity));
+                }
+                notModified.increment();
+                Optional.ofNullable(entity.getBody()).ifPresent( body -> body.subscribe(DataBufferUtils::release) );
+                return Mono.justOrEmpty(refresh(uri, requestHeaders, cached, entity.getHeaders()))
+                    // evicted in the meantime, so we need the full response after all
+                    .switchIfEmpty(Mono.defer( () -> store(uri, requestHeaders, exchange.apply(requestHeaders)) ));
+            });
+    }
+
+    private void revalidateInBackground(
+        URI uri,
+        HttpHeaders requestHeaders,
+        CachedResponse cached,
+        Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>> exchange
+    ) {
+        if (!revalidating.add(uri)) return;
+        (cached.hasValidators()
+                ? revalidate(uri, requestHeaders, cached, exchange)
+                : store(uri, requestHeaders, exchange.apply(requestHeaders))
+            )
+            // the response is stored while its body is consumed
+            .flatMap( entity -> Optional.ofNullable(entity.getBody()).orElse(Flux.empty())
+                .doOnNext(DataBufferUtils::release)
+                .then()
+            )
+            .doFinally( signal -> revalidating.remove(uri) )
+            .subscribe(
+                null,
+                e -> log.debug("Background revalidation of {} failed", uri, e)
+            );
+    }
+
+    /**
+     * Updates the stored response with the headers of a {@code 304 Not Modified} response.
+     * @return the refreshed response, or empty if the stored one has been evicted in the meantime
+     */
+    private Optional<ResponseEntity<Flux<DataBuffer>>> refresh(
+        URI uri,
+        HttpHeaders requestHeaders,
+        CachedResponse cached,
+        HttpHeaders notModifiedHeaders
+    ) {
+        final long now = System.currentTimeMillis();
+        final HttpHeaders headers = new HttpHeaders();
+        headers.addAll(cached.headers());
+        notModifiedHeaders.forEach( (name, values) -> {
+            if (BODY_HEADERS.stream().noneMatch(name::equalsIgnoreCase)) {
+                headers.put(name, values);
+            }
+        });
+        final Optional<Lifetime> lifetime = lifetime(cached.statusCode(), headers, requestHeaders, now);
+        if (lifetime.isEmpty()) {
+            // the proxied service doesn't allow to store the response anymore; it's removed once it has been served
+            return toResponseEntity(cached)
+                .map( entity -> new ResponseEntity<>(
+                    Optional.ofNullable(entity.getBody()).orElse(Flux.empty())
+                        .doFinally( signal -> responses.asMap().remove(uri, cached) ),
+                    entity.getHeaders(),
+                    entity.getStatusCode()
+                ));
+        }
+        final ByteBuf body;
+        try {
+            body = cached.body().retain();
+        } catch (IllegalReferenceCountException e) {
+            return Optional.empty();
+        }
+        final CachedResponse refreshed = new CachedResponse(
+            cached.statusCode(),
+            HttpHeaders.readOnlyHttpHeaders(headers),
+            cached.varyHeaders(),
+            cached.varyValues(),
+            body,
+            now,
+            age(headers),
+            lifetime.get()
+        );
+        final Optional<ResponseEntity<Flux<DataBuffer>>> entity = toResponseEntity(refreshed);
+        final CachedResponse current = responses.asMap()
+            .computeIfPresent(uri, (key, response) -> response == cached ? refreshed : response);
+        if (current != refreshed) {
+            // replaced or evicted in the meantime
+            body.release();
+        }
+        return entity;
+    }
+
+    /**
+     * Stores the response of the exchange in the cache, if it's cacheable. The body is copied into the cache
+     * while it is passed on; it's only stored once it is complete and doesn't exceed the maximum entry size.
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> store(
+        URI uri,
+        HttpHeaders requestHeaders,
+        Mono<ResponseEntity<Flux<DataBuffer>>> exchange
+    ) {
+        return exchange.map( entity -> {
+            final long now = System.currentTimeMillis();
+            final Optional<Lifetime> lifetime = lifetime(entity.getStatusCode(), entity.getHeaders(), requestHeaders, now);
+            if (lifetime.isEmpty() || entity.getBody() == null) {
+                return entity;
+            }
+            final List<String> varyHeaders = entity.getHeaders().getVary();
+            final Capture capture = new Capture( content -> new CachedResponse(
+                entity.getStatusCode(),
+                copyOf(entity.getHeaders()),
+                varyHeaders,
+                varyValues(varyHeaders, requestHeaders),
+                content,
+                now,
+                age(entity.getHeaders()),
+                lifetime.get()
+            ));
+            final Flux<DataBuffer> body = entity.getBody()
+                .doOnNext(capture::append)
+                .doOnComplete( () -> capture.complete(uri) )
+                // no-op once the capture is complete
+                .doFinally( signal -> capture.abandon() );
+            return new ResponseEntity<>(body, entity.getHeaders(), entity.getStatusCode());
+        });
+    }
+
+    /**
+     * Collects the body of a response in direct memory while it passes by. The memory is only allocated once
+     * the body is consumed, so a response whose body is never subscribed doesn't hold any.
+     */
+    private final class Capture {
+        private final Function<ByteBuf, CachedResponse> entry;
+        @Nullable
+        private ByteBuf content;
+        private boolean done;
+
+        Capture(Function<ByteBuf, CachedResponse> entry) {
+            this.entry = entry;
+        }
+
+        synchronized void append(DataBuffer buffer) {
+            if (done) return;
+            if (content == null) {
+                content = allocator.directBuffer(INITIAL_BUFFER_SIZE, maximumEntrySize);
+            }
+            final int length = buffer.readableByteCount();
+            if (content.readableBytes() + length > maximumEntrySize) {
+                abandon();
+                return;
+            }
+            content.writeBytes(buffer.toByteBuffer(buffer.readPosition(), length));
+        }
+
+        synchronized void complete(URI uri) {
+            if (done) return;
+            done = true;
+            responses.put(uri, entry.apply(content != null ? content : allocator.directBuffer(0, 0)));
+            content = null;
+        }
+
+        synchronized void abandon() {
+            done = true;
+            if (content == null) return;
+            content.release();
+            content = null;
+        }
+    }
+
+    /**
+     * Creates the response for a stored one. The body is only retained once it is subscribed, so that a response
+     * whose body is never consumed doesn't keep the stored body alive.
+     * @return the response, or empty if the stored response has been evicted in the meantime
+     */
+    private Optional<ResponseEntity<Flux<DataBuffer>>> toResponseEntity(CachedResponse response) {
+        if (response.body().refCnt() == 0) {
+            return Optional.empty();
+        }
+        final HttpHeaders headers = new HttpHeaders();
+        headers.addAll(response.headers());
+        headers.set(HttpHeaders.AGE, Long.toString(response.age(System.currentTimeMillis()) / 1000));
+        return Optional.of(new ResponseEntity<>(
+            Flux.defer( () -> {
+                try {
+                    return Mono.<DataBuffer>just(bufferFactory.wrap(response.body().retainedDuplicate()));
+                } catch (IllegalReferenceCountException e) {
+                    return Mono.error(new IllegalStateException("Cached response was evicted before its body was read", e));
+                }
+            }),
+            headers,
+            response.statusCode()
+        ));
+    }
+
+    /**
+     * @return how long the response may be used, or empty if a shared cache must not store it
+     */
+    private Optional<Lifetime> lifetime(HttpStatusCode statusCode, HttpHeaders headers, HttpHeaders requestHeaders, long now) {
+        final Map<String, String> requestCacheControl = HTTPUtils.parseCacheControl(requestHeaders.getOrEmpty(HttpHeaders.CACHE_CONTROL));
+        final Map<String, String> cacheControl = HTTPUtils.parseCacheControl(headers.getOrEmpty(HttpHeaders.CACHE_CONTROL));
+        if (!CACHEABLE_STATUS_CODES.contains(statusCode)
+                || requestCacheControl.containsKey("no-store")
+                || cacheControl.containsKey("no-store")
+                || cacheControl.containsKey("private")
+                || headers.getVary().contains("*")
+                || headers.containsKey(HttpHeaders.SET_COOKIE)) {
+            return Optional.empty();
+        }
+        // responses to authorized requests may only be shared, if the proxied service explicitly allows it
+        if (requestHeaders.containsKey(HttpHeaders.AUTHORIZATION)
+                && !(cacheControl.containsKey("public") || cacheControl.containsKey("s-maxage") || cacheControl.containsKey("must-revalidate"))) {
+            return Optional.empty();
+        }
+        final boolean mustRevalidate = cacheControl.containsKey("no-cache")
+            || cacheControl.containsKey("must-revalidate")
+            || cacheControl.containsKey("proxy-revalidate");
+        final Optional<Long> maxAge = parseSeconds(cacheControl.get("s-maxage"))
+            .or( () -> parseSeconds(cacheControl.get("max-age")) );
+        final long freshness;
+        if (cacheControl.containsKey("no-cache")) {
+            freshness = 0;
+        } else if (maxAge.isPresent()) {
+            freshness = maxAge.get() * 1000;
+        } else if (headers.getExpires() >= 0) {
+            final long date = headers.getDate() >= 0 ? headers.getDate() : now;
+            freshness = headers.getExpires() - date;
+        } else {
+            freshness = 0;
+        }
+        final boolean hasValidators = headers.getETag() != null || headers.getLastModified() >= 0;
+        if (freshness <= age(headers) && !hasValidators) {
+            return Optional.empty();
+        }
+        final long staleWhileRevalidate = mustRevalidate
+            ? 0
+            : parseSeconds(cacheControl.get("stale-while-revalidate")).map( seconds -> seconds * 1000 ).orElse(defaultStaleWhileRevalidate);
+        return Optional.of(new Lifetime(Math.max(0, freshness), staleWhileRevalidate));
+    }
+
+    private static Optional<Long> parseSeconds(@Nullable String value) {
+        if (value == null) return Optional.empty();
+        try {
+            return Optional.of(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return the age of the response in milliseconds, when it was received
+     */
+    private static long age(HttpHeaders headers) {
+        return parseSeconds(headers.getFirst(HttpHeaders.AGE)).orElse(0L) * 1000;
+    }
+
+    private static HttpHeaders copyOf(HttpHeaders headers) {
+        final HttpHeaders copy = new HttpHeaders();
+        copy.addAll(headers);
+        return HttpHeaders.readOnlyHttpHeaders(copy);
+    }
+
+    private static List<List<String>> varyValues(List<String> varyHeaders, HttpHeaders requestHeaders) {
+        return varyHeaders.stream().map(requestHeaders::getOrEmpty).toList();
+    }
+
+    /**
+     * Responses are kept while they may be served, and stale responses with validators for a while longer,
+     * so that they can be revalidated.
+     */
+    private long remainingRetention(CachedResponse response) {
+        final long stale = Math.max(
+            response.lifetime().staleWhileRevalidate(),
+            response.hasValidators() ? staleRetention : 0
+        );
+        final long remaining = response.lifetime().freshness() + stale - response.age(System.currentTimeMillis());
+        return Duration.ofMillis(Math.max(0, remaining)).toNanos();
+    }
+
+    private long memoryUsed() {
+        return responses.policy().eviction()
+            .map( eviction -> eviction.weightedSize().orElse(0) )
+            .orElse(0L);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import graphql.language.Directive;
+import graphql.language.Field;
+import graphql.language.SelectionSet;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Alternative to the tree based {@link ProxyQueryProcessor} that applies a {@link QueryPlan} directly
+ * on the token stream of a {@link JsonParser} and writes the result to a {@link JsonGenerator}.
+ * <p>
+ * Fields that aren't selected are skipped without being materialized. Selected field values are
+ * filtered while they are read and only the filtered output is buffered until the enclosing object
+ * is complete, since the output follows the order of the selection set.
+ * Objects that carry a {@code @GET} directive need their full source for resolving the {@code href},
+ * hence they are read as tree and handed over to the {@link ProxyQueryProcessor}.
+ * <p>
+ * The source is parsed while it is still arriving, with Jackson's non-blocking parser, so that the elements of a
+ * top level array are filtered, and their follow-up tasks are available, before the full source is received.
+ * Only the element in progress is held in memory, limited to 16MB, rather than the full source.
+ */
+@Service
+public class StreamingQueryProcessor {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // the same limit as for the full body with the tree based engine
+    private static final long MAX_ELEMENT_SIZE = 16 * 1024 * 1024;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ProxyQueryProcessor treeProcessor;
+    private final QueryPlanCache queryPlanCache;
+
+    public StreamingQueryProcessor(ProxyQueryProcessor treeProcessor, QueryPlanCache queryPlanCache) {
+        this.treeProcessor = treeProcessor;
+        this.queryPlanCache = queryPlanCache;
+    }
+
+    public record Result (
+        DataBuffer content,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ){
+    }
+
+    /**
+     * Applies the filter query on a source that is still arriving. The concatenated content of the emitted
+     * results forms the filtered document; each element of a top level array is emitted as soon as it is
+     * complete, together with its follow-up tasks.
+     */
+    public Flux<Result> processIncrementally(
+        Flux<DataBuffer> source,
+        DataBufferFactory bufferFactory,
+        String filterQuery,
+        @Nullable JsonNode variables
+    ) {
+        final QueryPlan plan = queryPlanCache.get(filterQuery).bind(variables);
+        return plan.rootOperation()
+            .map( rootOperation -> processIncrementally(source, bufferFactory, rootOperation, plan) )
+            // if the graphQL doesn't contain a query operation,
+            // ignore the query and return the source
+            .orElseGet( () -> source.map( buffer -> new Result(buffer, Collections.emptyList()) ) );
+    }
+
+    /**
+     * Applies the fragment of a follow-up task on a source that is still arriving,
+     * see {@link #processIncrementally(Flux, DataBufferFactory, String, JsonNode)}.
+     */
+    public Flux<Result> processFollowUpTaskIncrementally(Flux<DataBuffer> source, DataBufferFactory bufferFactory, ProxyQueryProcessor.FollowUpTask followUpTask) {
+        return processIncrementally(source, bufferFactory, followUpTask.rootOperation(), followUpTask.plan());
+    }
+
+    /**
+     * @return whether applying the filter query could result in follow-up tasks
+     */
+    public boolean mayCreateFollowUpTasks(String filterQuery) {
+        final QueryPlan plan = queryPlanCache.get(filterQuery);
+        return plan.rootOperation().isPresent() && plan.hasGetDirectives();
+    }
+
+    private Flux<Result> processIncrementally(
+        Flux<DataBuffer> source,
+        DataBufferFactory bufferFactory,
+        QueryPlan.RootOperation queryOperation,
+        QueryPlan plan
+    ) {
+        return Flux.defer( () -> {
+            final AtomicBoolean firstElement = new AtomicBoolean(true);
+            return JsonElementTokenizer.tokenize(source, objectMapper, MAX_ELEMENT_SIZE)
+                .map( element -> switch (element.kind()) {
+                    case ARRAY_START -> write(bufferFactory, (generator, followUpTasks) -> generator.writeRaw('['));
+                    case ARRAY_END -> write(bufferFactory, (generator, followUpTasks) -> generator.writeRaw(']'));
+                    case ARRAY_ELEMENT -> write(bufferFactory, (generator, followUpTasks) -> {
+                        if (!firstElement.getAndSet(false)) generator.writeRaw(',');
+                        try (JsonParser parser = element.tokens().asParser(objectMapper)) {
+                            processArrayElement(
+                                parser.nextToken(), queryOperation.selectionSet(), queryOperation.name(), queryOperation.directives(), parser, generator, plan, followUpTasks
+                            );
+                        }
+                    });
+                    case VALUE -> write(bufferFactory, (generator, followUpTasks) -> {
+                        try (JsonParser parser = element.tokens().asParser(objectMapper)) {
+                            processDocumentRoot(queryOperation, parser, generator, plan, followUpTasks);
+                        }
+                    });
+                });
+        });
+    }
+
+    void processDocumentRoot(
+        QueryPlan.RootOperation queryOperation,
+        JsonParser parser,
+        JsonGenerator generator,
+        QueryPlan plan,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ) throws IOException {
+        final JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_ARRAY) {
+            processSelectionSetOnArray(
+                queryOperation.selectionSet(), queryOperation.name(), queryOperation.directives(), parser, generator, plan, followUpTasks
+            );
+        }
+        else if (token == JsonToken.START_OBJECT) {
+            processSelectionSetOnObject(
+                queryOperation.selectionSet(), queryOperation.name(), queryOperation.directives(), parser, generator, plan, followUpTasks
+            );
+        }
+        else {
+            throw new UnsupportedOperationException("Support for JSON documents restricted to Object and Arrays: "+ token);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Writing {
+        void apply(JsonGenerator generator, List<ProxyQueryProcessor.FollowUpTask> followUpTasks) throws IOException;
+    }
+
+    private Result write(DataBufferFactory bufferFactory, Writing writing) {
+        final DataBuffer target = bufferFactory.allocateBuffer(INITIAL_BUFFER_SIZE);
+        final List<ProxyQueryProcessor.FollowUpTask> followUpTasks = new ArrayList<>();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(target.asOutputStream())) {
+            writing.apply(generator, followUpTasks);
+        } catch (IOException e) {
+            DataBufferUtils.release(target);
+            throw new RuntimeException("Failed to process JSON response", e);
+        } catch (RuntimeException e) {
+            DataBufferUtils.release(target);
+            throw e;
+        }
+        return new Result(target, followUpTasks);
+    }
+
+    /**
+     * Expects the parser to be positioned on the {@code START_ARRAY} token and leaves it on the
+     * matching {@code END_ARRAY} token.
+     */
+    void processSelectionSetOnArray(
+        SelectionSet selectionSet,
+        @Nullable String parentName,
+        List<Directive> directives,
+        JsonParser parser,
+        JsonGenerator generator,
+        QueryPlan plan,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ) throws IOException {
+        generator.writeStartArray();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            processArrayElement(token, selectionSet, parentName, directives, parser, generator, plan, followUpTasks);
+        }
+        generator.writeEndArray();
+    }
+
+    private void processArrayElement(
+        JsonToken token,
+        SelectionSet selectionSet,
+        @Nullable String parentName,
+        List<Directive> directives,
+        JsonParser parser,
+        JsonGenerator generator,
+        QueryPlan plan,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ) throws IOException {
+        if (token == JsonToken.START_OBJECT) {
+            processSelectionSetOnObject(selectionSet, parentName, directives, parser, generator, plan, followUpTasks);
+        } else if (token == JsonToken.START_ARRAY) {
+            processSelectionSetOnArray(selectionSet, parentName, directives, parser, generator, plan, followUpTasks);
+        } else {
+            throw new UnsupportedOperationException("Support for top level JSON arrays elements restricted to Object and Array: "+token);
+        }
+    }
+
+    /**
+     * Expects the parser to be positioned on the {@code START_OBJECT} token and leaves it on the
+     * matching {@code END_OBJECT} token.
+     */
+    void processSelectionSetOnObject(
+        SelectionSet selectionSet,
+        @Nullable String parentName,
+        List<Directive> directives,
+        JsonParser parser,
+        JsonGenerator generator,
+        QueryPlan plan,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ) throws IOException {
+        if (plan.getDirective(directives).isPresent()) {
+            final ObjectNode sourceObject = parser.readValueAsTree();
+            final ObjectNode targetObject = objectMapper.createObjectNode();
+            treeProcessor.processSelectionSetOnObject(
+                selectionSet, parentName, directives, sourceObject, plan, targetObject, followUpTasks
+            );
+            objectMapper.writeTree(generator, targetObject);
+            return;
+        }
+
+        final Map<String, List<Field>> candidateFields = plan.candidateFields(selectionSet);
+        // values of fields with a single candidate are filtered right away ...
+        final Map<Field, FilteredValue> filteredValues = new IdentityHashMap<>();
+        // ... values of fields with several candidates are kept until the type of the object is known
+        final Map<String, TokenBuffer> rawValues = new HashMap<>();
+        String type = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String fieldName = parser.currentName();
+            final JsonToken token = parser.nextToken();
+            if ("type".equals(fieldName)) {
+                // same semantics as JsonNode.asText()
+                type = token.isScalarValue() ? parser.getText() : "";
+            }
+            final List<Field> candidates = candidateFields.get(fieldName);
+            if (candidates == null) {
+                parser.skipChildren();
+            }
+            else if (candidates.size() == 1) {
+                final Field field = candidates.get(0);
+                final FilteredValue value = new FilteredValue(new TokenBuffer(parser), new ArrayList<>());
+                processFieldValue(field, parser, value.content(), plan, value.followUpTasks());
+                filteredValues.put(field, value);
+            }
+            else {
+                final TokenBuffer rawValue = new TokenBuffer(parser);
+                rawValue.copyCurrentStructure(parser);
+                rawValues.put(fieldName, rawValue);
+            }
+        }
+
+        final Optional<String> requiredType = Optional.ofNullable(type).or( () -> Optional.ofNullable(parentName) );
+        // same semantics as ObjectNode.set(): a repeated alias keeps its position, but takes the last value
+        final Map<String, TokenBuffer> targetFields = new LinkedHashMap<>();
+        for (Field field : plan.applicableFields(selectionSet, requiredType)) {
+            final String alias = field.getAlias() != null ? field.getAlias() : field.getName();
+            FilteredValue value = filteredValues.get(field);
+            if (value == null) {
+                final TokenBuffer rawValue = rawValues.get(field.getName());
+                if (rawValue == null) {
+                    throw new RuntimeException("Response is missing json attribute:" + field.getName());
+                }
+                value = new FilteredValue(new TokenBuffer(parser), new ArrayList<>());
+                try (JsonParser rawParser = rawValue.asParser(parser.getCodec())) {
+                    rawParser.nextToken();
+                    processFieldValue(field, rawParser, value.content(), plan, value.followUpTasks());
+                }
+            }
+            followUpTasks.addAll(value.followUpTasks());
+            targetFields.put(alias, value.content());
+        }
+
+        generator.writeStartObject();
+        for (Map.Entry<String, TokenBuffer> targetField : targetFields.entrySet()) {
+            generator.writeFieldName(targetField.getKey());
+            targetField.getValue().serialize(generator);
+        }
+        generator.writeEndObject();
+    }
+
+    private record FilteredValue (
+        TokenBuffer content,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ){
+    }
+
+    private void processFieldValue(
+        Field field,
+        JsonParser parser,
+        JsonGenerator generator,
+        QueryPlan plan,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ) throws IOException {
+        final JsonToken token = parser.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            processSelectionSetOnObject(
+                field.getSelectionSet(), field.getName(), field.getDirectives(), parser, generator, plan, followUpTasks
+            );
+        } else if (token == JsonToken.START_ARRAY) {
+            processArrayElements(field, parser, generator, plan, followUpTasks);
+        } else {
+            generator.copyCurrentEvent(parser);
+        }
+    }
+
+    private void processArrayElements(
+        Field field,
+        JsonParser parser,
+        JsonGenerator generator,
+        QueryPlan plan,
+        List<ProxyQueryProcessor.FollowUpTask> followUpTasks
+    ) throws IOException {
+        generator.writeStartArray();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            processFieldValue(field, parser, generator, plan, followUpTasks);
+        }
+        generator.writeEndArray();
+    }
+}
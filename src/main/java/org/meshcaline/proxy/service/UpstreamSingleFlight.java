@@ -0,0 +1,259 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.ResponseEntity;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Coalesces identical follow-up requests of safe methods to the proxied services that are in flight at the same
+ * time, if enabled with {@code proxy.upstream.single-flight.enabled}. A request that arrives while an identical one
+ * (same method, egress URI and values of all forwarded request headers, except the hop-by-hop headers and the
+ * configured ignored headers) is still in progress subscribes to the response of the first one instead of opening
+ * a new exchange.
+ * <p>
+ * A shared exchange is subscribed exactly once; its body is read as fast as the proxied service sends it, copied
+ * out of the (pooled) buffers of the HTTP client, which are released right away, and replayed to every subscriber
+ * as separate buffers, including subscribers that only subscribe once the body is complete. As the whole body is
+ * held in memory until it is complete, only follow-up requests are coalesced, whose bodies are processed as a
+ * whole anyway; the responses to the ingress requests are streamed. An exchange stops being shared once its body
+ * is complete, or once all of the requests it has been handed to have cancelled, before or after the response
+ * arrived, which also cancels the exchange.
+ */
+@Component
+public class UpstreamSingleFlight {
+
+    private static final Set<HttpMethod> SAFE_METHODS = Set.of(HttpMethod.GET, HttpMethod.HEAD);
+    // headers that only apply to a single connection, see RFC 9110, section 7.6.1
+    private static final Set<String> HOP_BY_HOP_HEADERS = Set.of(
+        "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "proxy-connection", "te", "trailer",
+        "transfer-encoding", "upgrade"
+    );
+
+    private record Key (
+        HttpMethod method,
+        URI uri,
+        // the values of the request headers by their lower case name
+        Map<String, List<String>> headers
+    ){
+    }
+
+    /**
+     * An exchange shared by identical requests, subscribed once on the first subscription; its response and body
+     * are replayed to all requests holding it. The exchange is cancelled once all of them have cancelled, whether
+     * before or after its response arrived, and can't be held anymore afterwards.
+     */
+    private class SharedExchange {
+        private final Key key;
+        private final Mono<ResponseEntity<Flux<DataBuffer>>> exchange;
+        private final Sinks.One<ResponseEntity<Void>> response = Sinks.one();
+        private final Sinks.Many<byte[]> body = Sinks.many().replay().all();
+        private int holders;
+        private boolean connected;
+        private boolean cancelled;
+        @Nullable
+        private Disposable upstream;
+
+        SharedExchange(Key key, Mono<ResponseEntity<Flux<DataBuffer>>> exchange) {
+            this.key = key;
+            this.exchange = exchange;
+        }
+
+        /**
+         * @return whether the exchange could be held; it can't once it has been cancelled
+         */
+        synchronized boolean hold() {
+            if (cancelled) return false;
+            holders++;
+            return true;
+        }
+
+        /**
+         * @return the response of the exchange; each holder subscribes once
+         */
+        Mono<ResponseEntity<Flux<DataBuffer>>> subscribe() {
+            final AtomicBoolean delivered = new AtomicBoolean();
+            final AtomicBoolean released = new AtomicBoolean();
+            final Runnable release = () -> {
+                if (released.compareAndSet(false, true)) release();
+            };
+            return response.asMono()
+                .doOnSubscribe( subscription -> connect() )
+                .doOnNext( entity -> delivered.set(true) )
+                .doOnCancel( () -> {
+                    // a cancellation once the response arrived applies to its body
+                    if (!delivered.get()) release.run();
+                })
+                .map( entity -> new ResponseEntity<>(
+                    body.asFlux().<DataBuffer>map(DefaultDataBufferFactory.sharedInstance::wrap).doOnCancel(release),
+                    entity.getHeaders(),
+                    entity.getStatusCode()
+                ));
+        }
+
+        private void connect() {
+            synchronized (this) {
+                if (connected || cancelled) return;
+                connected = true;
+            }
+            final Disposable subscribed = exchange
+                .flatMapMany( entity -> {
+                    response.tryEmitValue(new ResponseEntity<>(entity.getHeaders(), entity.getStatusCode()));
+                    return Optional.ofNullable(entity.getBody()).orElse(Flux.empty());
+                })
+                .map( buffer -> {
+                    final byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    DataBufferUtils.release(buffer);
+                    return bytes;
+                })
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                .subscribe(
+                    body::tryEmitNext,
+                    error -> {
+                        // stop sharing before the subscribers see the end of the exchange
+                        complete();
+                        response.tryEmitError(error);
+                        body.tryEmitError(error);
+                    },
+                    () -> {
+                        complete();
+                        response.tryEmitEmpty();
+                        body.tryEmitComplete();
+                    }
+                );
+            final boolean cancelledMeanwhile;
+            synchronized (this) {
+                upstream = subscribed;
+                cancelledMeanwhile = cancelled;
+            }
+            if (cancelledMeanwhile) subscribed.dispose();
+        }
+
+        private void release() {
+            final Disposable cancelledUpstream;
+            synchronized (this) {
+                if (--holders > 0 || cancelled) return;
+                cancelled = true;
+                cancelledUpstream = upstream;
+            }
+            complete();
+            if (cancelledUpstream != null) cancelledUpstream.dispose();
+        }
+
+        private void complete() {
+            inFlight.remove(key, this);
+        }
+    }
+
+    private final boolean enabled;
+    private final Set<String> ignoredHeaders;
+    private final Map<Key, SharedExchange> inFlight = new ConcurrentHashMap<>();
+    private final Counter coalescedRequests;
+
+    public UpstreamSingleFlight(
+        @Value("${proxy.upstream.single-flight.enabled:false}") boolean enabled,
+        @Value("${proxy.upstream.single-flight.ignored-headers:}") List<String> ignoredHeaders,
+        MeterRegistry meterRegistry
+    ) {
+        this.enabled = enabled;
+        this.ignoredHeaders = ignoredHeaders.stream()
+            .map( name -> name.trim().toLowerCase(Locale.ROOT) )
+            .collect(Collectors.toSet());
+        this.coalescedRequests = Counter.builder("proxy.upstream.coalesced")
+            .description("Requests to proxied services that have been served by an identical request in flight")
+            .register(meterRegistry);
+    }
+
+    /**
+     * @param followUp whether the request is a follow-up request; no other requests are coalesced
+     * @return whether requests with the given method and body can be coalesced
+     */
+    public boolean appliesTo(HttpMethod method, boolean hasBody, boolean followUp) {
+        return enabled && followUp && !hasBody && SAFE_METHODS.contains(method);
+    }
+
+    /**
+     * Executes the exchange, unless an identical one is in flight already.
+     * @param exchange performs the actual exchange with the proxied service
+     */
+    public Mono<ResponseEntity<Flux<DataBuffer>>> execute(
+        HttpMethod method,
+        URI uri,
+        HttpHeaders headers,
+        Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> exchange
+    ) {
+        return Mono.defer( () -> {
+            final Key key = new Key(method, uri, keyHeaders(headers));
+            final boolean[] created = { false };
+            final SharedExchange shared = inFlight.computeIfAbsent(key, k -> {
+                created[0] = true;
+                return new SharedExchange(k, exchange.get());
+            });
+            if (!shared.hold()) {
+                // the shared exchange has been cancelled in the meantime
+                return exchange.get();
+            }
+            if (!created[0]) coalescedRequests.increment();
+            return shared.subscribe();
+        });
+    }
+
+    /**
+     * @return the values of the request headers that make up the key, by their lower case name
+     */
+    private Map<String, List<String>> keyHeaders(HttpHeaders headers) {
+        final Set<String> connectionHeaders = headers.getConnection().stream()
+            .map( name -> name.trim().toLowerCase(Locale.ROOT) )
+            .collect(Collectors.toSet());
+        final Map<String, List<String>> keyHeaders = new TreeMap<>();
+        headers.forEach( (name, values) -> {
+            final String normalizedName = name.toLowerCase(Locale.ROOT);
+            if (HOP_BY_HOP_HEADERS.contains(normalizedName)
+                || connectionHeaders.contains(normalizedName)
+                || ignoredHeaders.contains(normalizedName)) {
+                return;
+            }
+            keyHeaders.computeIfAbsent(normalizedName, n -> new ArrayList<>()).addAll(values);
+        });
+        return keyHeaders;
+    }
+}
@@ -22,6 +22,10 @@ package org.meshcaline.proxy.util;
 import org.springframework.http.HttpHeaders;
 import org.springframework.web.server.ServerWebExchange;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class HTTPUtils {
 
@@ -57,6 +61,25 @@ public class HTTPUtils {
         return forwardedHeader.toString();
     }
 
+    /**
+     * Parses the directives of the (possibly multiple) Cache-Control headers.
+     * @return the arguments of the directives by their lower-case names; directives without argument map to ""
+     */
+    public static Map<String, String> parseCacheControl(List<String> cacheControlHeaders) {
+        final Map<String, String> directives = new HashMap<>();
+        for (String header : cacheControlHeaders) {
+            for (String directive : header.split(",")) {
+                final int separator = directive.indexOf('=');
+                final String name = (separator < 0 ? directive : directive.substring(0, separator))
+                    .trim().toLowerCase(Locale.ROOT);
+                if (name.isEmpty()) continue;
+                final String argument = separator < 0 ? "" : directive.substring(separator + 1).trim();
+                directives.putIfAbsent(name, argument.replaceAll("^\"|\"$", ""));
+            }
+        }
+        return directives;
+    }
+
     private static String formatHostPort(URI uri) {
         if (uri.getPort() == -1) {  // Default ports are omitted
             return uri.getHost();
@@ -0,0 +1,156 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks that the follow-up requests to a slow proxied service are cancelled, once the deadline of the ingress
+ * request expires or the client disconnects.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class FollowUpCancellationTest {
+
+    private static final String QUERY = "query users @GET(fragment:\"user\", href: \"/api/users/${id}\") "
+        + "{ id ... on user { email } } fragment user on user { id, email }";
+    private static final int USERS = 3;
+
+    private static DisposableServer stub;
+    private static volatile CountDownLatch followUpsStarted;
+    private static volatile CountDownLatch followUpsCancelled;
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @BeforeAll
+    static void startStub() {
+        stub = HttpServer.create()
+            .host("127.0.0.1")
+            .port(0)
+            .route( routes -> routes
+                .get("/users", (request, response) -> response
+                    .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                    .sendString(Mono.just("[{\"id\":1},{\"id\":2},{\"id\":3}]")) )
+                .get("/users/{id}", (request, response) -> {
+                    // the proxy cancels a follow-up request by closing its connection
+                    request.withConnection( connection -> connection.onDispose(followUpsCancelled::countDown) );
+                    followUpsStarted.countDown();
+                    return response
+                        .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .sendString(Mono.delay(Duration.ofSeconds(30))
+                            .map( tick -> "{\"id\":" + request.param("id") + ",\"email\":\"user@example.org\"}" ));
+                })
+            )
+            .bindNow();
+    }
+
+    @AfterAll
+    static void stopStub() {
+        stub.disposeNow();
+    }
+
+    @DynamicPropertySource
+    static void mappings(DynamicPropertyRegistry registry) {
+        registry.add("proxy.config.mappings.[http://localhost:\\d+/api/(.*)]", () -> "http://127.0.0.1:" + stub.port() + "/$1");
+    }
+
+    @BeforeEach
+    void resetLatches() {
+        followUpsStarted = new CountDownLatch(USERS);
+        followUpsCancelled = new CountDownLatch(USERS);
+    }
+
+    @Test
+    void cancelsFollowUpsWhenDeadlineExpires() throws Exception {
+        final String body = webTestClient.mutate().responseTimeout(Duration.ofSeconds(10)).build()
+            .get().uri("/api/users")
+            .header("X-MESHCALINE-QUERY", QUERY)
+            .header("X-MESHCALINE-DEADLINE", "3s")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(String.class)
+            .returnResult()
+            .getResponseBody();
+
+        assertThat(followUpsStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(followUpsCancelled.await(5, TimeUnit.SECONDS)).isTrue();
+        // the last part reports the follow-ups that have been skipped
+        assertThat(body).contains("X-MESHCALINE-SKIPPED: " + USERS);
+        final JsonNode report = new ObjectMapper().readTree(
+            body.substring(body.lastIndexOf("{\"cost\""), body.lastIndexOf("\r\n--"))
+        );
+        assertThat(report.path("skipped").findValuesAsText("url"))
+            .containsExactlyInAnyOrder("/api/users/1", "/api/users/2", "/api/users/3");
+        assertThat(report.path("skipped").findValuesAsText("fragment")).containsOnly("user");
+    }
+
+    @Test
+    void cancelsFollowUpsWhenClientDisconnects() throws InterruptedException {
+        final Flux<DataBuffer> body = webTestClient.get().uri("/api/users")
+            .header("X-MESHCALINE-QUERY", QUERY)
+            .exchange()
+            .returnResult(DataBuffer.class)
+            .getResponseBody();
+
+        // the body is consumed on an event loop of the client, which must not be blocked while we wait
+        final Disposable subscription = body.subscribe(DataBufferUtils::release);
+        try {
+            assertThat(followUpsStarted.await(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            subscription.dispose();
+        }
+
+        assertThat(followUpsCancelled.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void rejectsInvalidDeadline() {
+        webTestClient.get().uri("/api/users")
+            .header("X-MESHCALINE-QUERY", QUERY)
+            .header("X-MESHCALINE-DEADLINE", "soon")
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+}
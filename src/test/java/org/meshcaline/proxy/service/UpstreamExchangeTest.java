@@ -0,0 +1,141 @@
+/*
+ * This file is part of the *meshcaline proxy* project.
+ *
+ * Copyright (C) 2025, Andreas Schmidt
+ *
+ * *meshcaline proxy* is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.meshcaline.proxy.service;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks that each request to a proxied service is sent exactly once, for plain and processed responses and for
+ * follow-up requests. Coalescing of identical requests is disabled, as it would hide requests that are sent twice.
+ */
+@SpringBootTest(
+    webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = "proxy.upstream.single-flight.enabled=false"
+)
+class UpstreamExchangeTest {
+
+    private static final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    private static DisposableServer stub;
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @BeforeAll
+    static void startStub() {
+        stub = HttpServer.create()
+            .host("127.0.0.1")
+            .port(0)
+            .route( routes -> routes
+                .get("/users", (request, response) -> {
+                    hit(request.path());
+                    return response
+                        .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .sendString(Mono.just("[{\"id\":1,\"type\":\"user\"},{\"id\":2,\"type\":\"user\"},{\"id\":3,\"type\":\"user\"}]"));
+                })
+                .get("/users/{id}", (request, response) -> {
+                    hit(request.path());
+                    return response
+                        .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .sendString(Mono.just("{\"id\":" + request.param("id") + ",\"type\":\"user\",\"email\":\"user"
+                            + request.param("id") + "@example.org\",\"name\":\"User\"}"));
+                })
+            )
+            .bindNow();
+    }
+
+    private static void hit(String path) {
+        hits.computeIfAbsent("/" + path, p -> new AtomicInteger()).incrementAndGet();
+    }
+
+    @AfterAll
+    static void stopStub() {
+        stub.disposeNow();
+    }
+
+    @DynamicPropertySource
+    static void mappings(DynamicPropertyRegistry registry) {
+        registry.add("proxy.config.mappings.[http://localhost:\\d+/api/(.*)]", () -> "http://127.0.0.1:" + stub.port() + "/$1");
+    }
+
+    @BeforeEach
+    void resetHits() {
+        hits.clear();
+    }
+
+    @Test
+    void sendsPlainRequestOnce() {
+        webTestClient.get().uri("/api/users/1")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody().jsonPath("$.email").isEqualTo("user1@example.org");
+
+        assertThat(hits).containsOnlyKeys("/users/1");
+        assertThat(hits.get("/users/1")).hasValue(1);
+    }
+
+    @Test
+    void sendsProcessedRequestOnce() {
+        webTestClient.get().uri("/api/users/2")
+            .header("X-MESHCALINE-QUERY", "query user { id email }")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody()
+                .jsonPath("$.email").isEqualTo("user2@example.org")
+                .jsonPath("$.name").doesNotExist();
+
+        assertThat(hits).containsOnlyKeys("/users/2");
+        assertThat(hits.get("/users/2")).hasValue(1);
+    }
+
+    @Test
+    void sendsFollowUpRequestsOnce() {
+        final String body = webTestClient.get().uri("/api/users")
+            .header("X-MESHCALINE-QUERY", "query users @GET(fragment:\"user\", href: \"/api/users/${id}\") "
+                + "{ id } fragment user on user { id, email }")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(String.class)
+            .returnResult()
+            .getResponseBody();
+
+        assertThat(body).contains("user1@example.org", "user2@example.org", "user3@example.org");
+        assertThat(hits).containsOnlyKeys("/users", "/users/1", "/users/2", "/users/3");
+        assertThat(hits.values()).allSatisfy( count -> assertThat(count).hasValue(1) );
+    }
+}